@@ -0,0 +1,165 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of reusable chunk buffers.
+ *
+ * Getters borrow a buffer for every handoff, the {@link FileWriter} returns it
+ * once the data is on disk. Buffers come in size classes, doubling from the
+ * smallest chunk size, so getters can grow their handoffs with the link
+ * speed. Buffers are allocated lazily while the pool is under its byte
+ * budget. Past it, free buffers of other classes are dropped to make room,
+ * and if there are none a borrower waits for a buffer to be returned. Every
+ * such wait is counted, so the pool can be sized from the exhaustion count.
+ */
+class BufferPool {
+
+    private static final long WAIT_MS = 10; // how long to wait before looking at the other classes again
+
+    private final int minSize; // size of the smallest class
+    private final BlockingQueue<ByteBuffer>[] free; // buffers ready to be borrowed, per class
+    private final long maxBytes; // max bytes ever allocated at once
+    private final boolean direct; // allocate off heap
+    private final AtomicLong allocated = new AtomicLong(0); // bytes
+    private final AtomicLong exhausted = new AtomicLong(0); // times a borrower found the pool dry
+
+    @SuppressWarnings({ "unchecked", "rawtypes" }) // no generic array creation
+    BufferPool(long maxBytes, int minSize, int maxSize, boolean direct) {
+        this.minSize = minSize;
+        this.maxBytes = Math.max(maxBytes, maxSize);
+        this.direct = direct;
+        int classes = classOf(Math.max(minSize, maxSize)) + 1;
+        this.free = new BlockingQueue[classes];
+        for (int c = 0; c < classes; c++) {
+            free[c] = new ArrayBlockingQueue<ByteBuffer>((int) Math.max(1, Math.min(1 << 16, this.maxBytes / sizeOf(c))));
+        }
+    }
+
+    /**
+     * @param size bytes needed
+     * @return a cleared buffer of at least size bytes, at most the largest
+     *         class. blocks if the pool is at its budget
+     */
+    ByteBuffer borrow(int size) {
+        int c = Math.min(classOf(size), free.length - 1);
+        boolean counted = false;
+        while (true) {
+            ByteBuffer buf = free[c].poll();
+            if (buf == null && reserve(sizeOf(c))) {
+                buf = direct ? ByteBuffer.allocateDirect(sizeOf(c)) : ByteBuffer.allocate(sizeOf(c));
+            }
+            if (buf == null && dropOther(c)) {
+                continue;
+            }
+            if (buf == null) {
+                if (!counted) {
+                    exhausted.incrementAndGet();
+                    counted = true;
+                }
+                try {
+                    buf = free[c].poll(WAIT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return direct ? ByteBuffer.allocateDirect(sizeOf(c)) : ByteBuffer.allocate(sizeOf(c));
+                }
+            }
+            if (buf != null) {
+                buf.clear();
+                return buf;
+            }
+        }
+    }
+
+    /**
+     * @return a buffer of the smallest class
+     */
+    ByteBuffer borrow() {
+        return borrow(minSize);
+    }
+
+    /**
+     * gives a buffer back to the pool
+     * 
+     * @param buf a buffer taken from {@link #borrow(int)}
+     */
+    void release(ByteBuffer buf) {
+        if (buf == null) {
+            return;
+        }
+        int c = classOf(buf.capacity());
+        if (c < free.length && sizeOf(c) == buf.capacity() && !free[c].offer(buf)) {
+            allocated.addAndGet(-buf.capacity());
+        }
+    }
+
+    /**
+     * frees budget by dropping an idle buffer of another class
+     */
+    private boolean dropOther(int keep) {
+        for (int c = 0; c < free.length; c++) {
+            if (c != keep) {
+                ByteBuffer buf = free[c].poll();
+                if (buf != null) {
+                    allocated.addAndGet(-buf.capacity());
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean reserve(int bytes) {
+        while (true) {
+            long n = allocated.get();
+            if (n + bytes > maxBytes) {
+                return false;
+            }
+            if (allocated.compareAndSet(n, n + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private int classOf(int size) {
+        int c = 0;
+        while (sizeOf(c) < size) {
+            c++;
+        }
+        return c;
+    }
+
+    private int sizeOf(int c) {
+        return minSize << c;
+    }
+
+    /**
+     * @return size of the smallest class
+     */
+    int getBufferSize() {
+        return minSize;
+    }
+
+    /**
+     * @return size of the largest class
+     */
+    int getMaxBufferSize() {
+        return sizeOf(free.length - 1);
+    }
+
+    /**
+     * @return bytes currently allocated, in use or idle
+     */
+    long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * @return how many times a borrower had to wait for a buffer
+     */
+    long getExhaustedCount() {
+        return exhausted.get();
+    }
+}
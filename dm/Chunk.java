@@ -1,20 +1,24 @@
+import java.nio.ByteBuffer;
+
 /**
  * A chunk of data file
  *
- * Contains an offset, bytes of data, and size
+ * Contains an offset, bytes of data, and size. The data buffer is borrowed
+ * from the session's {@link BufferPool} and goes back to it once written.
  */
 class Chunk {
-    private byte[] data;
+    private ByteBuffer data;
     private long offset;
     private int size_in_bytes;
+    private long enqueuedAt; // System.nanoTime() when it entered the out queue
 
-    Chunk(byte[] data, long offset, int size_in_bytes) {
-        this.data = data != null ? data.clone() : null;
+    Chunk(ByteBuffer data, long offset, int size_in_bytes) {
+        this.data = data;
         this.offset = offset;
         this.size_in_bytes = size_in_bytes;
     }
 
-    byte[] getData() {
+    ByteBuffer getData() {
         return data;
     }
 
@@ -26,6 +30,14 @@ class Chunk {
         return size_in_bytes;
     }
     
+    void setEnqueuedAt(long nanos) {
+        this.enqueuedAt = nanos;
+    }
+
+    long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+    
     public boolean isSignal(){
         return (size_in_bytes == -1);
     }
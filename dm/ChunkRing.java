@@ -0,0 +1,164 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated, lock-free ring of chunks between the getters and the
+ * writers.
+ *
+ * A bounded multi-producer/multi-consumer array queue: every slot carries a
+ * sequence number telling whether it is free for the producer or full for the
+ * consumer of a given lap, so both sides claim slots with a single CAS and
+ * nothing is allocated per chunk. Writers drain everything available in one
+ * go. When the ring is full, producers either spin or park with a growing
+ * back-off, see -Didcdm.backpressure.
+ */
+class ChunkRing {
+
+    private static final long MIN_PARK = 20_000L; // ns
+    private static final long MAX_PARK = 1_000_000L; // ns
+    private static final int SPINS = 100; // busy tries before parking
+
+    private final Chunk[] slots;
+    private final AtomicLongArray sequence; // per slot: pos when free for pos, pos + 1 when full for pos
+    private final int mask;
+    private final AtomicLong enqueuePos = new AtomicLong(0);
+    private final AtomicLong dequeuePos = new AtomicLong(0);
+    private final boolean spin; // producers busy-wait on a full ring instead of parking
+
+    /**
+     * @param capacity rounded up to a power of two
+     * @param spin     busy-wait when full, for the lowest latency at the cost
+     *                 of a core per blocked producer
+     */
+    ChunkRing(int capacity, boolean spin) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new Chunk[size];
+        this.sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+        this.mask = size - 1;
+        this.spin = spin;
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer(Chunk ck) {
+        long pos = enqueuePos.get();
+        int idx;
+        while (true) {
+            idx = (int) (pos & mask);
+            long dif = sequence.get(idx) - pos;
+            if (dif == 0) {
+                if (enqueuePos.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = enqueuePos.get();
+            } else if (dif < 0) {
+                return false;
+            } else {
+                pos = enqueuePos.get();
+            }
+        }
+        slots[idx] = ck;
+        sequence.set(idx, pos + 1); // publishes the slot
+        return true;
+    }
+
+    /**
+     * adds a chunk, waiting while the ring is full
+     */
+    void put(Chunk ck) throws InterruptedException {
+        long park = MIN_PARK;
+        int spins = 0;
+        while (!offer(ck)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (spin || spins++ < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(park);
+                park = Math.min(park * 2, MAX_PARK);
+            }
+        }
+    }
+
+    /**
+     * @return the oldest chunk, or null if the ring is empty
+     */
+    Chunk poll() {
+        long pos = dequeuePos.get();
+        int idx;
+        while (true) {
+            idx = (int) (pos & mask);
+            long dif = sequence.get(idx) - (pos + 1);
+            if (dif == 0) {
+                if (dequeuePos.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = dequeuePos.get();
+            } else if (dif < 0) {
+                return null;
+            } else {
+                pos = dequeuePos.get();
+            }
+        }
+        Chunk ck = slots[idx];
+        slots[idx] = null;
+        sequence.set(idx, pos + mask + 1); // free for the next lap
+        return ck;
+    }
+
+    /**
+     * waits up to timeoutMs for chunks, then takes as many as are available
+     * 
+     * @param out where to put them
+     * @return number of chunks taken, 0 on timeout
+     */
+    int drain(Chunk[] out, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        long park = MIN_PARK;
+        int spins = 0;
+        Chunk ck;
+        while ((ck = poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return 0;
+            }
+            if (spins++ < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(Math.min(park, left));
+                park = Math.min(park * 2, MAX_PARK);
+            }
+        }
+        int n = 0;
+        out[n++] = ck;
+        while (n < out.length && (ck = poll()) != null) {
+            out[n++] = ck;
+        }
+        return n;
+    }
+
+    /**
+     * @return chunks waiting, approximately
+     */
+    int size() {
+        long n = enqueuePos.get() - dequeuePos.get();
+        return (int) Math.max(0, Math.min(n, slots.length));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+}
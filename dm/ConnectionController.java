@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adapts the number of getters of a {@link Download} to the throughput it
+ * measures.
+ *
+ * Every interval it compares the aggregate rate to the best rate seen so far.
+ * While adding a getter keeps raising it by a meaningful step, it adds
+ * another. Once it stops paying off, it holds the count, and drops the last
+ * getter if the rate actually went down. A 429/503 answer or a timeout halves
+ * the count, retiring the slowest getters first. After a while of holding it
+ * probes again, since conditions change during a long download.
+ */
+class ConnectionController implements Runnable {
+
+    static final double GAIN = 1.10; // an added getter must raise the rate by 10% to be kept
+    static final int PROBE_AFTER = 10; // intervals to hold before trying to grow again
+
+    private final Download session;
+    private final Map<HTTPRangeGetter, Long> lastReceived = new HashMap<HTTPRangeGetter, Long>();
+
+    ConnectionController(Download session) {
+        this.session = session;
+    }
+
+    @Override
+    public void run() {
+        long lastTotal = session.getReceived();
+        long lastThrottles = session.getThrottleCount();
+        long lastTime = System.nanoTime();
+        double bestRate = 0;
+        boolean growing = true; // the last step added a getter, or we are probing
+        int holding = 0;
+        try {
+            while (!session.isFinished()) {
+                Thread.sleep(Settings.ADAPTIVE_INTERVAL_MS);
+                long now = System.nanoTime();
+                long total = session.getReceived();
+                long throttles = session.getThrottleCount();
+                double rate = (total - lastTotal) * 1e9 / (now - lastTime);
+                lastTotal = total;
+                lastTime = now;
+                List<HTTPRangeGetter> getters = bySpeed();
+                int running = getters.size();
+
+                if (throttles > lastThrottles) {
+                    // the server pushes back, halve
+                    lastThrottles = throttles;
+                    for (int i = 0; i < running / 2; i++) {
+                        getters.get(i).retire();
+                    }
+                    bestRate = 0;
+                    growing = false;
+                    holding = 0;
+                } else if (running == 0 || growing && rate > bestRate * GAIN) {
+                    bestRate = Math.max(bestRate, rate);
+                    if (running < Settings.ADAPTIVE_MAX && session.hasWork()) {
+                        session.addGetter();
+                    }
+                } else if (growing) {
+                    // diminishing returns. undo the last step if it made things worse
+                    if (rate < bestRate && running > 1) {
+                        getters.get(0).retire();
+                    }
+                    growing = false;
+                    holding = 0;
+                } else if (++holding >= PROBE_AFTER) {
+                    bestRate = rate;
+                    growing = true;
+                }
+            }
+        } catch (InterruptedException ie) {
+            // the download is over
+        }
+    }
+
+    /**
+     * @return the running getters, slowest over the last interval first
+     */
+    private List<HTTPRangeGetter> bySpeed() {
+        Map<HTTPRangeGetter, Long> current = new HashMap<HTTPRangeGetter, Long>();
+        Map<HTTPRangeGetter, Long> delta = new HashMap<HTTPRangeGetter, Long>();
+        for (HTTPRangeGetter g : session.getGetters()) {
+            long r = g.getReceived();
+            Long before = lastReceived.get(g);
+            current.put(g, r);
+            delta.put(g, r - (before == null ? 0 : before));
+        }
+        lastReceived.clear();
+        lastReceived.putAll(current);
+        List<HTTPRangeGetter> getters = new ArrayList<HTTPRangeGetter>(delta.keySet());
+        getters.sort((a, b) -> Long.compare(delta.get(a), delta.get(b)));
+        return getters;
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hands out connection permits shared by every running {@link Download}.
+ *
+ * A getter holds a permit for the duration of one range request. There is a
+ * global cap and a cap per host, so when a download runs out of work its
+ * permits go to the getters of the downloads that are still running.
+ */
+class ConnectionScheduler {
+
+    private final Semaphore global; // caps all connections of the process
+    private final int perHost; // caps connections to a single host:port
+    private final ConcurrentHashMap<String, Semaphore> hosts;
+
+    /**
+     * @param globalCap  max concurrent connections overall
+     * @param perHostCap max concurrent connections to one host, 0 for no cap
+     *                   beyond the global one
+     */
+    ConnectionScheduler(int globalCap, int perHostCap) {
+        this.global = new Semaphore(Math.max(1, globalCap), true);
+        this.perHost = perHostCap > 0 ? perHostCap : Math.max(1, globalCap);
+        this.hosts = new ConcurrentHashMap<String, Semaphore>();
+    }
+
+    /**
+     * blocks until a connection to host may be opened
+     * 
+     * @param host host:port key, see {@link #hostKey(java.net.URL)}
+     */
+    void acquire(String host) {
+        Semaphore h = hosts.computeIfAbsent(host, k -> new Semaphore(perHost, true));
+        h.acquireUninterruptibly(); // take the host permit first, so we never sit on a global one
+        global.acquireUninterruptibly();
+    }
+
+    /**
+     * returns a permit taken with {@link #acquire(String)}
+     */
+    void release(String host) {
+        global.release();
+        hosts.get(host).release();
+    }
+
+    /**
+     * @return the key connections to this url are counted under
+     */
+    static String hostKey(java.net.URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getHost() + ":" + port;
+    }
+}
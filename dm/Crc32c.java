@@ -0,0 +1,122 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C of file extents, and combining the CRCs of two adjacent extents
+ * into the CRC of both without touching their bytes.
+ *
+ * Chunks reach the writers out of order, so each one is checksummed on its
+ * own and the results are merged as extents join. Combining multiplies the
+ * first CRC by x^(8 * len2) modulo the polynomial, which takes a few
+ * carry-less multiplications of 32 bit words (as in zlib's crc32_combine).
+ * CRCs are kept in a long, with {@link #UNKNOWN} for extents whose CRC could
+ * not be derived.
+ */
+final class Crc32c {
+
+    static final long UNKNOWN = -1;
+    private static final int POLY = 0x82F63B78; // reflected Castagnoli polynomial
+    private static final int[] X2N = new int[64 + 3]; // x^(2^n) modulo the polynomial, for any 64 bit byte count
+
+    static {
+        int p = 1 << 30; // x^1
+        X2N[0] = p;
+        for (int n = 1; n < X2N.length; n++) {
+            X2N[n] = p = multModP(p, p);
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    /**
+     * @return CRC32C of the first len bytes of data
+     */
+    static long of(ByteBuffer data, int len) {
+        ByteBuffer buf = data.duplicate();
+        buf.position(0).limit(len);
+        CRC32C crc = new CRC32C();
+        crc.update(buf);
+        return crc.getValue();
+    }
+
+    /**
+     * @param crc1 CRC of the first extent
+     * @param crc2 CRC of the extent right after it
+     * @param len2 length of the second extent
+     * @return CRC of both extents, UNKNOWN if either is
+     */
+    static long combine(long crc1, long crc2, long len2) {
+        if (crc1 == UNKNOWN || crc2 == UNKNOWN) {
+            return UNKNOWN;
+        }
+        int op = x8nModP(len2);
+        return (multModP(op, (int) crc1) ^ (int) crc2) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return a * b modulo the polynomial, bit reflected
+     */
+    private static int multModP(int a, int b) {
+        int m = 1 << 31;
+        int p = 0;
+        while (true) {
+            if ((a & m) != 0) {
+                p ^= b;
+                if ((a & (m - 1)) == 0) {
+                    break;
+                }
+            }
+            m >>>= 1;
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLY : b >>> 1;
+        }
+        return p;
+    }
+
+    /**
+     * @return x^(8 * n) modulo the polynomial
+     */
+    private static int x8nModP(long n) {
+        int p = 1 << 31; // x^0
+        int k = 3;
+        while (n != 0) {
+            if ((n & 1) != 0) {
+                p = multModP(X2N[k], p);
+            }
+            n >>>= 1;
+            k++;
+        }
+        return p;
+    }
+
+    /**
+     * self check: combines the CRCs of a head and of zero filled tails up to
+     * 1 GiB and compares them with CRC32C over the whole extent, e.g.
+     * java -Xmx64m Crc32c
+     */
+    public static void main(String[] args) {
+        ByteBuffer head = ByteBuffer.allocate(4096);
+        new java.util.Random(1).nextBytes(head.array());
+        ByteBuffer zeros = ByteBuffer.allocateDirect(1 << 20);
+        long[] lens = { 1, 4095, 1L << 20, (1L << 29) - 1, 1L << 29, (1L << 29) + 12345, 1L << 30 };
+        boolean ok = true;
+        for (long len : lens) {
+            CRC32C whole = new CRC32C();
+            CRC32C tail = new CRC32C();
+            whole.update(head.duplicate());
+            for (long done = 0; done < len;) {
+                int n = (int) Math.min(zeros.capacity(), len - done);
+                ByteBuffer z = zeros.duplicate();
+                z.limit(n);
+                whole.update(z.duplicate());
+                tail.update(z);
+                done += n;
+            }
+            long got = combine(of(head, head.capacity()), tail.getValue(), len);
+            boolean match = got == whole.getValue();
+            ok &= match;
+            System.out.println("len2 " + len + ": " + (match ? "ok" : "MISMATCH"));
+        }
+        System.exit(ok ? 0 : 1);
+    }
+}
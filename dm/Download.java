@@ -1,12 +1,17 @@
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.io.*;
 
 /**
@@ -16,21 +21,42 @@ import java.io.*;
 class Download {
 
     FileWriter fw; // this session's file writer
+    private final BufferPool bufferPool; // chunk buffers shared by the getters and the writer
+    private final TokenBucket tokenBucket; // limits the rate of this download
     private String url_str; // the request from the user
     private String filename; // name of the file to be downloaded
     private int numConnections; // the number of connections as requested by the user
     private String metadataFilename; // mtd file name
     final BlockingQueue<Range> rangeQueue; // delivers downloadable ranges to {@link HTTPRangeGetter} threads
-    final BlockingQueue<Chunk> outQueue; // holds the buffer for the output
+    private final List<Range> activeRanges; // ranges currently owned by a getter. candidates for stealing
+    final ChunkRing outQueue; // holds the buffer for the output
     private URL url; // a url for the requested resource
+    private final List<String> mirrorUrls; // other urls for the same file, as given by the user
+    private final List<Mirror> mirrors; // url and the checked mirror urls, where getters fetch ranges from
     File mtdFile; // saves metadata to storage. helps for recovery
-    private long contentLength; // size of the target file
+    private volatile long contentLength; // size of the target file, -1 until a streamed download ends if the server does not say
+    private String etag; // the server's ETag, or null
+    private String acceptRanges; // the server's Accept-Ranges, or null
+    private HttpPool.Response probe; // the header probe, still streaming the file from byte 0, until a getter takes it
+    private Range probeRange; // the part of the file the probe is kept for, null when streaming
+    private boolean streaming; // the server ignores Range or leaves out the length, one getter reads the whole body
     //private long written;
     private AtomicLong written;
-    private boolean[] wasChunkDLed; // signals wether ot not the i'th chunk had been downloaded
-                                    // we are limited to files that are smaller than 20GB
+    private ProgressMap progress; // which bytes are already on disk
     public final int MAX_CONNECTIONS = 16; // seems like a reasonable cap.
+    static final long MIN_SPLIT_SIZE = 1 << 19; // don't steal tails smaller than this, the new request costs more
     private AtomicInteger downloadersRemaining;
+    private volatile boolean gettersStarted = false; // downloadersRemaining is meaningful
+    private final List<HTTPRangeGetter> getters; // getters currently running
+    private ExecutorService workers; // runs the getters
+    private final LongAdder received; // bytes read from the network, for throughput
+    private final LongAdder throttled; // 429/503 answers and timeouts seen by the getters
+    private final Histogram chunkLatency; // ns from entering the out queue to being on disk
+    private final DownloadMetrics metrics; // live numbers, over JMX and the metrics file
+    private IntegrityCheck integrity = IntegrityCheck.NONE; // what the finished file is checked against
+    private final ConnectionScheduler scheduler; // connection permits, possibly shared with other downloads
+    private String progressPrefix = ""; // tells downloads apart in batch mode
+    private volatile String failure; // why this download cannot go on, null while it can
 
     /**
      * Manages a single download.
@@ -39,14 +65,53 @@ class Download {
      * @param numConnections - number of concurrent connections to use
      */
     Download(String url, int numConnections) {
+        this(url, numConnections, null);
+    }
+
+    /**
+     * Manages a single download, as part of a batch.
+     * 
+     * @param url            - url requested.
+     * @param numConnections - number of getters to run
+     * @param scheduler      - connection permits shared by the batch, or null
+     *                       to give this download numConnections of its own
+     */
+    Download(String url, int numConnections, ConnectionScheduler scheduler) {
+        this(java.util.Collections.singletonList(url), numConnections, scheduler);
+    }
+
+    /**
+     * Manages a single download from several mirrors.
+     * 
+     * @param urls           - urls of the same file. the first names it, the
+     *                       others are used if they serve the same length
+     *                       and ETag
+     * @param numConnections - number of getters to run
+     * @param scheduler      - connection permits shared by a batch, or null
+     */
+    Download(List<String> urls, int numConnections, ConnectionScheduler scheduler) {
+        String url = urls.get(0);
         this.url_str = url;
+        this.mirrorUrls = new ArrayList<String>(urls.subList(1, urls.size()));
+        this.mirrors = new CopyOnWriteArrayList<Mirror>();
         this.numConnections = (numConnections > MAX_CONNECTIONS) ? MAX_CONNECTIONS : numConnections;
         this.written = new AtomicLong(0);
         this.contentLength = -1;
         this.filename = StripPath(url);
         this.metadataFilename = filename + ".mtd";
-        this.outQueue = new LinkedBlockingQueue<Chunk>(1024); // generally seems like a good number powers of two are really convincing
-        this.rangeQueue = new LinkedBlockingQueue<Range>(64); // generally seems like a good number powers of two are really convincing
+        this.outQueue = new ChunkRing(Settings.QUEUE_CAPACITY, Settings.BACKPRESSURE.equals("spin")); // 1024 by default. generally seems like a good number powers of two are really convincing
+        this.rangeQueue = new LinkedBlockingQueue<Range>(); // unbounded, a resumed download may have many holes
+        this.activeRanges = new ArrayList<Range>();
+        this.getters = new CopyOnWriteArrayList<HTTPRangeGetter>();
+        this.received = new LongAdder();
+        this.throttled = new LongAdder();
+        this.chunkLatency = new Histogram();
+        this.metrics = new DownloadMetrics(this);
+        int ownCap = Settings.ADAPTIVE ? Math.max(this.numConnections, Settings.ADAPTIVE_MAX) : this.numConnections;
+        this.scheduler = scheduler != null ? scheduler : new ConnectionScheduler(ownCap, ownCap);
+        this.tokenBucket = new TokenBucket(Settings.RATE);
+        this.bufferPool = new BufferPool(Settings.POOL_BYTES, HTTPRangeGetter.CHUNK_SIZE, Settings.MAX_CHUNK_SIZE,
+                Settings.DIRECT_BUFFERS);
         init();
     }
 
@@ -58,25 +123,56 @@ class Download {
      */
     void init() {
         this.fw = new FileWriter(this);
-        downloadersRemaining = new AtomicInteger(numConnections);
+        downloadersRemaining = new AtomicInteger(0);
         try {
             mtdFile = new File(metadataFilename);
             url = new URL(url_str);
+            mirrors.add(new Mirror(url));
             if (mtdFile.exists()) {
                 initFromMtdFile();
             } else {
                 initFromNothing();
             }
+            if (failure != null) {
+                return;
+            }
+            checkFreeSpace();
+            if (failure == null && !streaming) {
+                addMirrors();
+            }
         } catch (NullPointerException npe) {
-            System.err.println("null pointer to metadata file. Shutting down");
-            IdcDm.usage();
+            fail("null pointer to metadata file");
         } catch (MalformedURLException mue) {
-            System.err.println("cannot parse url. Shutting down");
-            System.err.println(mue.getMessage());
-            IdcDm.usage();
+            fail("cannot parse url " + url_str + ": " + mue.getMessage());
+        }
+    }
+
+    /**
+     * gives up on this download, and only on it. getters stop after their
+     * current chunk, writers drop what is still queued
+     * 
+     * @param why printed once, with the download's prefix
+     */
+    public void fail(String why) {
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = why;
+        }
+        System.err.println(progressPrefix + why);
+        for (HTTPRangeGetter getter : getters) {
+            getter.retire();
         }
     }
 
+    /**
+     * @return true if {@link #fail(String)} was called
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
     /**
      * @return {@link Download#fw}
      */
@@ -84,6 +180,45 @@ class Download {
         return this.fw;
     }
 
+    /**
+     * @return {@link Download#scheduler}
+     */
+    public ConnectionScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * @return the number of getters this download runs
+     */
+    public int getNumConnections() {
+        return this.numConnections;
+    }
+
+    /**
+     * @return {@link Download#progressPrefix}
+     */
+    public String getProgressPrefix() {
+        return this.progressPrefix;
+    }
+
+    public void setProgressPrefix(String prefix) {
+        this.progressPrefix = prefix;
+    }
+
+    /**
+     * @return {@link Download#tokenBucket}
+     */
+    public TokenBucket getTokenBucket() {
+        return this.tokenBucket;
+    }
+
+    /**
+     * @return {@link Download#bufferPool}
+     */
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
     /**
      * @return {@link Download#filename}
      */
@@ -98,6 +233,20 @@ class Download {
         return this.contentLength;
     }
 
+    /**
+     * @return {@link Download#etag}
+     */
+    public String getEtag() {
+        return this.etag;
+    }
+
+    /**
+     * @return {@link Download#acceptRanges}
+     */
+    public String getAcceptRanges() {
+        return this.acceptRanges;
+    }
+
     /**
      * @return {@link Download#metadataFilename}
      */
@@ -108,7 +257,7 @@ class Download {
     /**
      * @return {@link Download#outQueue}
      */
-    public BlockingQueue<Chunk> getOutQueue() {
+    public ChunkRing getOutQueue() {
         return this.outQueue;
     }
 
@@ -123,10 +272,170 @@ class Download {
     }
 
     /**
-     * @return a single range from the range queue
+     * hands out work to an idle getter. takes a range from the range queue, and
+     * once the queue is drained steals the tail of the largest range in flight.
+     * 
+     * @return a range to download, or null if there is nothing left worth taking
      */
     public synchronized Range getRange() {
-        return rangeQueue.poll();
+        Range rn = rangeQueue.poll();
+        if (rn == null) {
+            rn = stealRange();
+        }
+        if (rn != null) {
+            activeRanges.add(rn);
+        }
+        return rn;
+    }
+
+    /**
+     * @return where the next request should go, the first url while the
+     *         header probe waits for a getter
+     */
+    public Mirror pickMirror() {
+        synchronized (this) {
+            if (probe != null) {
+                return mirrors.get(0);
+            }
+        }
+        return Mirror.pick(mirrors);
+    }
+
+    /**
+     * @return true if some mirror was not dropped
+     */
+    public boolean hasLiveMirror() {
+        for (Mirror m : mirrors) {
+            if (!m.isDropped()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@link Download#mirrors}
+     */
+    public List<Mirror> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * hands the header probe's response, which streams the file from byte 0,
+     * to the first getter that asks, along with the range it is kept for
+     * 
+     * @param ranges gets the probe's range
+     * @return the response, or null if there is none or it was taken
+     */
+    public synchronized HttpPool.Response takeProbe(List<Range> ranges) {
+        HttpPool.Response resp = probe;
+        if (resp == null) {
+            return null;
+        }
+        probe = null;
+        if (probeRange != null) {
+            ranges.add(probeRange);
+            activeRanges.add(probeRange);
+        }
+        return resp;
+    }
+
+    /**
+     * closes the header probe if no getter took it
+     */
+    private synchronized void dropProbe() {
+        if (probe != null) {
+            probe.abort();
+            probe = null;
+        }
+    }
+
+    /**
+     * like {@link #getRange()}, but if the range is a small hole, also takes
+     * the small holes queued after it, so they can share one request
+     * 
+     * @param max most ranges to return
+     * @return ranges in file order, empty if there is nothing left
+     */
+    public synchronized List<Range> getRanges(int max) {
+        List<Range> ranges = new ArrayList<Range>();
+        Range rn = getRange();
+        if (rn == null) {
+            return ranges;
+        }
+        ranges.add(rn);
+        while (ranges.size() < max && rn.getRemaining() < MIN_SPLIT_SIZE) {
+            rn = rangeQueue.peek();
+            if (rn == null || rn.getRemaining() >= MIN_SPLIT_SIZE || rn.getStart() < ranges.get(ranges.size() - 1).getStart()) {
+                break;
+            }
+            ranges.add(getRange());
+        }
+        return ranges;
+    }
+
+    /**
+     * splits the range with the most bytes left. its owner keeps the head and
+     * stops reading once it reaches the new end
+     * 
+     * @return the stolen tail, or null if no range is large enough to split
+     */
+    private Range stealRange() {
+        Range victim = null;
+        long most = 0;
+        for (Range rn : activeRanges) {
+            long remaining = rn.getRemaining();
+            if (remaining > most) {
+                most = remaining;
+                victim = rn;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        return victim.split(MIN_SPLIT_SIZE);
+    }
+
+    /**
+     * takes back what is left of a range from a getter that gives up on it.
+     * the getter's range ends where it stopped, the rest is queued for others
+     * 
+     * @param rn the range
+     */
+    public synchronized void returnRange(Range rn) {
+        synchronized (rn) {
+            if (rn.isComplete()) {
+                return;
+            }
+            long pos = rn.getPOS();
+            rangeQueue.add(new Range(pos, rn.getEnd(), pos));
+            rn.setLast(pos - 1);
+            metrics.pushRetry();
+        }
+    }
+
+    /**
+     * @return true if a new getter would find something to do
+     */
+    public synchronized boolean hasWork() {
+        if (!rangeQueue.isEmpty() || probe != null) {
+            return true;
+        }
+        for (Range rn : activeRanges) {
+            if (rn.getRemaining() >= 2 * MIN_SPLIT_SIZE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * called by a getter once it stopped working on a range
+     * 
+     * @param rn the range
+     */
+    public synchronized void rangeDone(Range rn) {
+        activeRanges.remove(rn);
     }
 
     /**
@@ -135,7 +444,7 @@ class Download {
      * @param path path/link
      * @return the name of the file requested by the user
      */
-    private static String StripPath(String path) {
+    static String StripPath(String path) {
         return path.substring(path.lastIndexOf('/') + 1, path.length());
     }
 
@@ -144,37 +453,151 @@ class Download {
      */
     private void initFromNothing() {
         queryForHeaders();
-        int chucnksInDl = (int) contentLength/HTTPRangeGetter.CHUNK_SIZE;
-        wasChunkDLed = new boolean[10000000];
+        if (failure != null) {
+            return;
+        }
+        progress = new ProgressMap(contentLength);
         written.set(0);
-        Arrays.fill(wasChunkDLed, false); // no chunk was downloaded
+        if (streaming) {
+            // the probe carries the whole file, there is nothing to plan
+            System.out.println("the server does not serve ranges of " + filename + ", downloading it over a single connection");
+            numConnections = 1;
+            return;
+        }
+        if (SegmentCache.SHARED != null) {
+            long cached = SegmentCache.SHARED.fill(this);
+            if (cached > 0) {
+                if (probe != null) {
+                    probe.abort(); // the start of the file may be cached, plan from the holes
+                    probe = null;
+                }
+                // fetch only the holes between cached segments
+                System.out.println("found " + cached + " of " + contentLength + " bytes of " + filename + " in the cache");
+                written.set(progress.getDoneBytes());
+                parseMtdArray();
+                return;
+            }
+        }
         long rnSize = contentLength / numConnections;
         for (int i = 0; i < numConnections; i++) {
             // create a range for each thread to get
-            if (i+1 == numConnections) {
-                rangeQueue.add(new Range(i * rnSize, contentLength -1  , i * rnSize ));
-                break;
-            } 
-            rangeQueue.add(new Range(i * rnSize , (i + 1) * rnSize -1, i * rnSize));
+            long first = i * rnSize;
+            long last = i + 1 == numConnections ? contentLength - 1 : (i + 1) * rnSize - 1;
+            Range rn = new Range(first, last, first);
+            if (i == 0 && probe != null) {
+                probeRange = rn; // already streaming, the first getter picks it up
+            } else {
+                rangeQueue.add(rn);
+            }
         }
-        for (int i = 0; i < numConnections; i++) {
-            rangeQueue.add(new Range(-1, -1,-1));
+    }
+
+    /**
+     * checks the other urls against the first one, all at once, and adds
+     * those that serve the same file as mirrors
+     */
+    private void addMirrors() {
+        if (mirrorUrls.isEmpty() || contentLength <= 0) {
+            return;
+        }
+        ExecutorService pool = IdcDm.newThreadPool();
+        List<Future<Mirror>> checks = new ArrayList<Future<Mirror>>();
+        for (String u : mirrorUrls) {
+            checks.add(pool.submit(() -> checkMirror(u)));
+        }
+        pool.shutdown();
+        for (Future<Mirror> check : checks) {
+            try {
+                Mirror m = check.get();
+                if (m != null) {
+                    mirrors.add(m);
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                System.err.println("problem checking a mirror: " + ex);
+            }
+        }
+        if (mirrors.size() > 1) {
+            System.out.println("downloading " + filename + " from " + mirrors.size() + " mirrors");
+        }
+    }
+
+    /**
+     * asks a url for the first byte of the file, to see that it serves ranges
+     * of a file as long as ours, with the same ETag if both have one
+     * 
+     * @return the mirror, or null if it is not one
+     */
+    private Mirror checkMirror(String u) {
+        try {
+            URL mu = new URL(u);
+            HttpPool.Response resp = HttpPool.SHARED.open("GET", mu, "bytes=0-0");
+            try {
+                String why = null;
+                String tag = resp.getHeader("ETag");
+                if (resp.getStatus() != 206) {
+                    why = "it does not serve ranges (status " + resp.getStatus() + ")";
+                } else if (MultipartParser.parseContentRange(resp.getHeader("Content-Range"))[2] != contentLength) {
+                    why = "its length differs from " + contentLength;
+                } else if (etag != null && tag != null && !etag.equals(tag)) {
+                    why = "its ETag " + tag + " differs from " + etag;
+                }
+                if (why != null) {
+                    System.err.println("ignoring mirror " + u + ": " + why);
+                    resp.abort();
+                    return null;
+                }
+                resp.getBody().readAllBytes(); // one byte, keeps the connection
+                resp.close();
+                return new Mirror(mu, tag);
+            } catch (IOException ioe) {
+                resp.abort();
+                throw ioe;
+            }
+        } catch (IOException ioe) {
+            System.err.println("ignoring mirror " + u + ": " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * makes sure the bytes still missing fit on the target's filesystem,
+     * before any range is requested. fails the download if they do not
+     */
+    private void checkFreeSpace() {
+        if (contentLength <= 0) {
+            return;
+        }
+        File dir = new File(filename).getAbsoluteFile().getParentFile();
+        long needed = contentLength - progress.getDoneBytes();
+        long usable = dir.getUsableSpace();
+        if (dir.isDirectory() && needed > usable) {
+            dropProbe();
+            fail(filename + " needs " + needed + " more bytes, but only " + usable + " are free on its filesystem");
         }
     }
 
     /**
-     * queries the server for the downloads headers
+     * queries the server for the downloads headers, with a GET for the whole
+     * file from byte 0. a ranged answer is kept open, and the first getter
+     * streams the first range from it, so data starts flowing without
+     * another round trip. a 416, as for an empty file, is asked again
+     * without the range
      */
     private void queryForHeaders() {
-        HttpURLConnection con;
+        HttpPool.Response resp;
         int respCode;
         try {
-            con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-            con.setConnectTimeout(HTTPRangeGetter.CONNECT_TIMEOUT);
-            con.connect();
-
-            respCode = con.getResponseCode();
+            long sent = System.nanoTime();
+            resp = HttpPool.SHARED.open("GET", url, "bytes=0-");
+            metrics.recordTtfb(System.nanoTime() - sent);
+            respCode = resp.getStatus();
+            if (respCode == 416) {
+                // byte 0 is past the end, the file is empty (Content-Range: bytes */0).
+                // ask again without a range, and take the length from the answer
+                resp.abort();
+                resp = HttpPool.SHARED.open("GET", url, null);
+                respCode = resp.getStatus();
+            }
 
             switch (respCode / 100) {
             case 1: // nope
@@ -184,34 +607,78 @@ class Download {
             case 3: // shouldn't be. java defaults to follow redirections
                 break;
             case 4: // client error
-                System.err.print("Request came back with status code: " + respCode);
-                System.err.println(", Try fixing your link. shutting down");
-                IdcDm.usage();
-                ;
-                break;
+                resp.abort();
+                fail("Request for " + url + " came back with status code: " + respCode + ", Try fixing your link");
+                return;
             case 5: // server error
-                System.err.print("Request came back with status code: " + respCode);
-                System.err.println(", This is due to some server error and you should try again soon. Shutting down");
-                IdcDm.usage();
+                resp.abort();
+                fail("Request for " + url + " came back with status code: " + respCode
+                        + ", This is due to some server error and you should try again soon");
+                return;
             default:
-                IdcDm.usage();
-                break;
+                resp.abort();
+                fail("Request for " + url + " came back with status code: " + respCode);
+                return;
             }
 
-            this.contentLength = con.getContentLengthLong(); // "assume this is good"
+            if (respCode == 206) {
+                this.contentLength = MultipartParser.parseContentRange(resp.getHeader("Content-Range"))[2];
+            } else {
+                this.contentLength = resp.getContentLength(); // "assume this is good"
+            }
+            this.etag = resp.getHeader("ETag");
+            this.integrity = IntegrityCheck.fromResponse(resp);
+            this.acceptRanges = resp.getHeader("Accept-Ranges");
   //          System.out.println("cont length: " + contentLength);
-            con.disconnect();
+            if (respCode == 206 && contentLength > 0) {
+                probe = resp;
+            } else if (respCode / 100 == 2 && resp.getContentLength() != 0) {
+                // a 200 to a range request, or a length we won't know until the end
+                streaming = true;
+                probe = resp;
+            } else if (resp.getContentLength() == 0) {
+                resp.close();
+            } else {
+                resp.abort(); // a whole body we don't want
+            }
         } catch (SocketTimeoutException ste) {
-            System.err.println("initial connection timed out. Shutting down");
-            System.err.println(ste.getMessage());
+            fail("initial connection to " + url + " timed out: " + ste.getMessage());
         } catch (IOException ie) {
-            System.err.println("expirienced an error during initial connection. Shutting down");
-            System.err.println(ie.getMessage());
+            fail("expirienced an error during initial connection to " + url + ": " + ie.getMessage());
         }
     }
 
-    public void end(){
+    /**
+     * @return {@link Download#streaming}
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * called by the streaming getter once the body ended
+     * 
+     * @param length bytes in the body, the file's length if the server did
+     *               not say
+     */
+    public void streamEnded(long length) {
+        if (contentLength < 0) {
+            contentLength = length;
+        }
+    }
 
+    /**
+     * releases the session's resources. called once every writer is done
+     */
+    public void end(){
+        dropProbe();
+        integrity.stop();
+        MetricsReporter.SHARED.remove(metrics);
+        fw.close();
+        if (bufferPool.getExhaustedCount() > 0) {
+            System.err.println("buffer pool ran dry " + bufferPool.getExhaustedCount()
+                    + " times, consider raising -Didcdm.poolBytes (now " + Settings.POOL_BYTES + ")");
+        }
     }
     /**************** recovery ****************/
 
@@ -220,90 +687,257 @@ class Download {
      * {@link Serializable} for presistence read by Download and written by
      * FileWriter
      */
-    public class MtdFileOpaque implements Serializable {
+    public static class MtdFileOpaque implements Serializable {
 
         /**
          *
          */
-        private static final long serialVersionUID = 1L;
+        private static final long serialVersionUID = 3L;
         long contentLength;
         long written;
-        boolean[] wasChunkDLed;
+        ProgressMap progress;
+        String checksum; // expected digest, as IntegrityCheck.parse reads it, or null
+        String etag; // the server's ETag, or null. missing in metadata from older versions
 
         MtdFileOpaque() {
             written = -1;
             contentLength = -1;
         }
 
-        MtdFileOpaque(long cl, long w, boolean[] wcdl) {
+        MtdFileOpaque(long cl, long w, ProgressMap pm, String cs, String et) {
             contentLength = cl;
             written = w;
-            wasChunkDLed = wcdl;
+            progress = pm;
+            checksum = cs;
+            etag = et;
         }
     }
 
     /**
-     * reads the metadata file. inits local variables, ranges and opaque
+     * reads the metadata file. inits local variables, ranges and opaque. if
+     * the file changed on the server since, starts over
      */
     private void initFromMtdFile() {
-        MtdFileOpaque mfo = new MtdFileOpaque();
-        FileInputStream fis;
-        ObjectInputStream ois; // used to read metadata file
-        try {
-            fis = new FileInputStream(mtdFile);
-            ois = new ObjectInputStream(fis);
+        MtdFileOpaque mfo;
+        try (FileInputStream fis = new FileInputStream(mtdFile);
+                ObjectInputStream ois = new ObjectInputStream(fis)) { // used to read metadata file
             mfo = (MtdFileOpaque) ois.readObject();
-            ois.close();
-            fis.close();
-
-            this.contentLength = mfo.contentLength;
-            this.written.set(mfo.written);
-            this.wasChunkDLed = mfo.wasChunkDLed.clone();
-
         } catch (FileNotFoundException fnfe) {
-            System.err.println("Metadata file could not be opened. Shutting down.");
-            System.exit(0);
+            fail("Metadata file " + mtdFile + " could not be opened.");
+            return;
         } catch (IOException ie) {
-            System.err.println("Metadata file could not be read. Shutting down.");
-            System.exit(0);
+            fail("Metadata file " + mtdFile + " could not be read: " + ie.getMessage());
+            return;
         } catch (ClassNotFoundException cnfe) {
-            System.err.println("Metadata file could not be read. Shutting down.");
-            System.exit(0);
+            fail("Metadata file " + mtdFile + " could not be read.");
+            return;
+        }
+        this.etag = mfo.etag;
+        if (mfo.contentLength > 0) {
+            try {
+                if (!sameOnServer(mfo.contentLength)) {
+                    System.err.println(filename + " changed on the server since it was interrupted, starting over");
+                    mtdFile.delete();
+                    MtdJournal.journalFor(mtdFile).delete();
+                    this.etag = null;
+                    initFromNothing();
+                    return;
+                }
+            } catch (IOException ioe) {
+                fail("cannot check " + url + " before resuming " + filename + ": " + ioe.getMessage());
+                return;
+            }
+        }
+        try {
+            this.contentLength = mfo.contentLength;
+            this.progress = mfo.progress;
+            // extents written after the snapshot, checked against the file
+            long torn = MtdJournal.replay(mtdFile, progress, new File(filename));
+            if (torn > 0) {
+                System.err.println(torn + " extents on disk do not match their checksum, fetching them again");
+            }
+            this.written.set(progress.getDoneBytes());
+            this.integrity = Settings.CHECKSUM != null ? IntegrityCheck.parse(Settings.CHECKSUM, "-Didcdm.checksum")
+                    : IntegrityCheck.parse(mfo.checksum, "the resume metadata");
+        } catch (IOException ie) {
+            fail("Metadata file " + mtdFile + " could not be read: " + ie.getMessage());
+            return;
         }
         parseMtdArray();
     }
 
     /**
-     * goes over the array, and creates a Range for each segment
+     * asks the first url for the first byte of the file, to see that it still
+     * serves the file the metadata was saved for. its length must match, and
+     * its ETag too, if the metadata has one. metadata saved without one takes
+     * the server's
+     * 
+     * @param length the length in the metadata
+     * @return false if the file changed, or is no longer served in ranges
      */
-    private void parseMtdArray() {
-        int s = 0; // stores the starting index for a segment
-        final boolean START = false, END = true;
-        boolean lookingFor = START;
-        long fByte = 0, lByte = 0; // first and last byte
-        for (int i = 0; i < wasChunkDLed.length; i++) {
-            if (wasChunkDLed[i] == lookingFor) {
-                if (lookingFor == START) {
-                    lookingFor = END;
-                    s = i;
-                } else { // lookingFor == end
-                    lookingFor = START;
-                    // translate chunks to bytes
-                    fByte = (long) s * HTTPRangeGetter.CHUNK_SIZE;
-                    lByte = (long) i * HTTPRangeGetter.CHUNK_SIZE;
-                    lByte--;
-                    rangeQueue.add(new Range(fByte, lByte, fByte));
-                }
+    private boolean sameOnServer(long length) throws IOException {
+        HttpPool.Response resp = HttpPool.SHARED.open("GET", url, "bytes=0-0");
+        try {
+            String tag = resp.getHeader("ETag");
+            if (resp.getStatus() != 206
+                    || MultipartParser.parseContentRange(resp.getHeader("Content-Range"))[2] != length
+                    || etag != null && !etag.equals(tag)) {
+                resp.abort();
+                return false;
             }
+            if (etag == null) {
+                etag = tag;
+            }
+            resp.getBody().readAllBytes(); // one byte, keeps the connection
+            resp.close();
+            return true;
+        } catch (IOException ioe) {
+            resp.abort();
+            throw ioe;
         }
     }
 
+    /**
+     * @param m where a range request goes
+     * @return the ETag to send as If-Range, so a file that changed comes back
+     *         whole instead of as a range of the new one. null if the ETag is
+     *         weak, or the mirror was not seen to have it
+     */
+    public String ifRangeFor(Mirror m) {
+        String tag = etag;
+        if (tag == null || tag.startsWith("W/")) {
+            return null;
+        }
+        return m == mirrors.get(0) || tag.equals(m.getEtag()) ? tag : null;
+    }
+
+    /**
+     * creates a Range for each segment that is not on disk yet
+     */
+    private void parseMtdArray() {
+        for (Range rn : progress.missing()) {
+            rangeQueue.add(rn);
+        }
+    }
+
+    /**************** getters ****************/
+
+    /**
+     * starts the first getters of this download
+     * 
+     * @param pool runs the getters. also used for getters added later
+     * @param n    number of getters to start
+     */
+    public void startGetters(ExecutorService pool, int n) {
+        this.workers = pool;
+        MetricsReporter.SHARED.add(metrics);
+        integrity.start(this);
+        for (int i = 0; i < n; i++) {
+            addGetter();
+        }
+        gettersStarted = true;
+    }
+
+    /**
+     * starts one more getter
+     */
+    public void addGetter() {
+        HTTPRangeGetter getter = new HTTPRangeGetter(this);
+        downloadersRemaining.incrementAndGet(); // before it can possibly signal done
+        getters.add(getter);
+        workers.execute(getter);
+    }
+
+    /**
+     * called by a getter right before it exits
+     */
+    public void getterDone(HTTPRangeGetter getter) {
+        getters.remove(getter);
+    }
+
+    /**
+     * @return the getters currently running
+     */
+    public List<HTTPRangeGetter> getGetters() {
+        return getters;
+    }
+
+    public void pushReceived(long n) {
+        received.add(n);
+    }
+
+    /**
+     * @return bytes read from the network so far
+     */
+    public long getReceived() {
+        return received.sum();
+    }
+
+    /**
+     * called by a getter when the server pushed back, with 429/503 or a timeout
+     */
+    public void reportThrottle() {
+        throttled.increment();
+    }
+
+    public long getThrottleCount() {
+        return throttled.sum();
+    }
+
+    /**
+     * checks the finished file against the expected digest, if there is one
+     * 
+     * @return false if the file is corrupt
+     */
+    public boolean verify() {
+        return integrity.verify();
+    }
+
+    /**
+     * @return the expected digest, as {@link IntegrityCheck#parse} reads it,
+     *         or null
+     */
+    public String getChecksum() {
+        return integrity.toSpec();
+    }
+
+    /**
+     * adds a finished download to the segment cache, if there is one
+     */
+    public void storeInCache() {
+        if (SegmentCache.SHARED != null) {
+            SegmentCache.SHARED.store(this);
+        }
+    }
+
+    /**
+     * @return {@link Download#chunkLatency}
+     */
+    public Histogram getChunkLatency() {
+        return chunkLatency;
+    }
+
+    /**
+     * @return {@link Download#metrics}
+     */
+    public DownloadMetrics getMetrics() {
+        return metrics;
+    }
+
     /************** status calls **************/
 
     public boolean downloadDone() {
         return ((written.get() == this.contentLength ) && allDownloadersDone());
     }
 
+    /**
+     * @return true once the download is done, or every getter gave up and
+     *         nothing more will reach the writers
+     */
+    public boolean isFinished() {
+        return gettersStarted && (downloadDone() || allDownloadersDone());
+    }
+
     public boolean allDownloadersDone() {
         return downloadersRemaining.get() == 0;
     }
@@ -318,11 +952,25 @@ class Download {
         return b;
     }
 
-    public void pushWritten(long written) {
-        long l = this.written.getAndAdd(written);
+    /**
+     * records that len bytes at offset reached the target file
+     * 
+     * @param crc CRC32C of the bytes, or {@link Crc32c#UNKNOWN}
+     */
+    public void pushWritten(long offset, long len, long crc) {
+        progress.markDone(offset, len, crc);
+        fw.journal(offset, len, crc);
+        long l = this.written.getAndAdd(len);
         // System.out.println("written: " + l);
     }
 
+    /**
+     * @return {@link Download#progress}
+     */
+    public ProgressMap getProgress() {
+        return progress;
+    }
+
     public boolean rangeQueueEmpty(){
         return this.rangeQueue.isEmpty();
     }
@@ -335,7 +983,11 @@ class Download {
      * @return percentage of data downloaded
      */
     public int getPercentage() {
-        return (int) ((100 * written.get()) / contentLength);
+        long length = contentLength;
+        if (length <= 0) {
+            return 0; // not known yet
+        }
+        return (int) ((100 * written.get()) / length);
     }
    
 }
\ No newline at end of file
@@ -0,0 +1,280 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live numbers of a single {@link Download}.
+ *
+ * The hot paths only bump LongAdders and {@link Histogram}s. Rates are
+ * derived by {@link MetricsReporter}, which calls {@link #sample()} once per
+ * interval, so reading a rate over JMX or into the JSON snapshot costs the
+ * download nothing.
+ */
+class DownloadMetrics implements DownloadMetricsMBean {
+
+    private final Download session;
+    private final Histogram queueTime = new Histogram(); // ns a chunk waited in the out queue
+    private final Histogram writeTime = new Histogram(); // ns per write call
+    private final Histogram ttfb = new Histogram(); // ns from request to response headers
+    private final LongAdder retries = new LongAdder(); // ranges or parts of ranges fetched again
+    private ObjectName name;
+
+    // updated by sample()
+    private long lastSampleTime = System.nanoTime();
+    private long lastReceived = 0;
+    private volatile long bytesPerSecond = 0;
+    private Map<HTTPRangeGetter, Long> lastGetterReceived = new HashMap<HTTPRangeGetter, Long>();
+    private Map<HTTPRangeGetter, Integer> connectionIds = new HashMap<HTTPRangeGetter, Integer>(); // stable while a getter lives
+    private int nextConnectionId = 1;
+    private volatile long[][] connectionStats = new long[0][]; // {id, bytes/s, ttfb us} per running getter
+
+    DownloadMetrics(Download session) {
+        this.session = session;
+    }
+
+    void recordQueueTime(long nanos) {
+        queueTime.record(nanos);
+    }
+
+    void recordWriteTime(long nanos) {
+        writeTime.record(nanos);
+    }
+
+    void recordTtfb(long nanos) {
+        ttfb.record(nanos);
+    }
+
+    void pushRetry() {
+        retries.increment();
+    }
+
+    /**
+     * derives rates from the counters. called by one thread, once per interval
+     */
+    synchronized void sample() {
+        long now = System.nanoTime();
+        double secs = (now - lastSampleTime) / 1e9;
+        if (secs <= 0) {
+            return;
+        }
+        long received = session.getReceived();
+        bytesPerSecond = (long) ((received - lastReceived) / secs);
+        lastReceived = received;
+        lastSampleTime = now;
+
+        List<HTTPRangeGetter> getters = session.getGetters();
+        Map<HTTPRangeGetter, Long> current = new HashMap<HTTPRangeGetter, Long>();
+        Map<HTTPRangeGetter, Integer> ids = new HashMap<HTTPRangeGetter, Integer>();
+        long[][] stats = new long[getters.size()][];
+        int i = 0;
+        for (HTTPRangeGetter g : getters) {
+            if (i == stats.length) {
+                break;
+            }
+            long r = g.getReceived();
+            Long before = lastGetterReceived.get(g);
+            current.put(g, r);
+            Integer id = connectionIds.get(g);
+            if (id == null) {
+                id = nextConnectionId++;
+            }
+            ids.put(g, id);
+            long rate = (long) ((r - (before == null ? r : before)) / secs);
+            stats[i++] = new long[] { id, rate, g.getLastTtfb() / 1000 };
+        }
+        lastGetterReceived = current;
+        connectionIds = ids;
+        connectionStats = Arrays.copyOf(stats, i);
+    }
+
+    /**
+     * registers the MBean. a second download of the same name is skipped
+     */
+    void register() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName("idcdm:type=Download,name=" + ObjectName.quote(session.getFilename()));
+            if (!mbs.isRegistered(on)) {
+                mbs.registerMBean(this, on);
+                name = on;
+            }
+        } catch (JMException jme) {
+            System.err.println("could not register metrics: " + jme.getMessage());
+        }
+    }
+
+    void unregister() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException jme) {
+                // already gone
+            }
+            name = null;
+        }
+    }
+
+    /**
+     * @return the current numbers as a JSON object
+     */
+    String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"filename\":").append(quote(getFilename()));
+        sb.append(",\"contentLength\":").append(getContentLength());
+        sb.append(",\"bytesWritten\":").append(getBytesWritten());
+        sb.append(",\"bytesReceived\":").append(getBytesReceived());
+        sb.append(",\"percentage\":").append(getPercentage());
+        sb.append(",\"bytesPerSecond\":").append(getBytesPerSecond());
+        sb.append(",\"etaSeconds\":").append(getEtaSeconds());
+        sb.append(",\"queueDepth\":").append(getQueueDepth());
+        sb.append(",\"queueTimeUs\":{\"p50\":").append(getQueueTimeP50()).append(",\"p99\":")
+                .append(getQueueTimeP99()).append("}");
+        sb.append(",\"writeTimeUs\":{\"p50\":").append(getWriteTimeP50()).append(",\"p99\":")
+                .append(getWriteTimeP99()).append(",\"max\":").append(getWriteTimeMax()).append("}");
+        // log-linear buckets, each a [lower bound in ns, count] pair
+        sb.append(",\"writeTimeHistogramNs\":{\"count\":").append(writeTime.getCount()).append(",\"buckets\":[");
+        long[][] buckets = writeTime.buckets();
+        for (int i = 0; i < buckets.length; i++) {
+            sb.append(i > 0 ? "," : "").append('[').append(buckets[i][0]).append(',').append(buckets[i][1]).append(']');
+        }
+        sb.append("]}");
+        sb.append(",\"ttfbUs\":{\"p50\":").append(getTtfbP50()).append("}");
+        sb.append(",\"retries\":").append(getRetries());
+        sb.append(",\"throttles\":").append(getThrottles());
+        sb.append(",\"poolExhausted\":").append(getPoolExhausted());
+        sb.append(",\"rateLimit\":").append(getRateLimit());
+        sb.append(",\"connections\":[");
+        long[][] stats = connectionStats;
+        for (int i = 0; i < stats.length; i++) {
+            sb.append(i > 0 ? "," : "").append("{\"id\":").append(stats[i][0]).append(",\"bytesPerSec\":")
+                    .append(stats[i][1]).append(",\"ttfbMicros\":").append(stats[i][2]).append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    @Override
+    public String getFilename() {
+        return session.getFilename();
+    }
+
+    @Override
+    public long getContentLength() {
+        return session.getContentLength();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return session.getWritten();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return session.getReceived();
+    }
+
+    @Override
+    public int getPercentage() {
+        return session.getPercentage();
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        long rate = bytesPerSecond;
+        long left = session.getContentLength() - session.getWritten();
+        if (left <= 0) {
+            return 0;
+        }
+        return rate > 0 ? left / rate : -1;
+    }
+
+    @Override
+    public int getConnections() {
+        return session.getGetters().size();
+    }
+
+    @Override
+    public String[] getConnectionStats() {
+        long[][] stats = connectionStats;
+        String[] lines = new String[stats.length];
+        for (int i = 0; i < stats.length; i++) {
+            lines[i] = "conn " + stats[i][0] + ": " + stats[i][1] + " B/s, ttfb " + stats[i][2] + " us";
+        }
+        return lines;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return session.getOutQueue().size();
+    }
+
+    @Override
+    public long getQueueTimeP50() {
+        return queueTime.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getQueueTimeP99() {
+        return queueTime.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getWriteTimeP50() {
+        return writeTime.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getWriteTimeP99() {
+        return writeTime.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getWriteTimeMax() {
+        return writeTime.percentile(1.0) / 1000;
+    }
+
+    @Override
+    public long getTtfbP50() {
+        return ttfb.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getThrottles() {
+        return session.getThrottleCount();
+    }
+
+    @Override
+    public long getPoolExhausted() {
+        return session.getBufferPool().getExhaustedCount();
+    }
+
+    @Override
+    public long getRateLimit() {
+        return session.getTokenBucket().getRate();
+    }
+
+    @Override
+    public void setRateLimit(long bytesPerSecond) {
+        session.getTokenBucket().setRate(bytesPerSecond);
+    }
+}
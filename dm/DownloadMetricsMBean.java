@@ -0,0 +1,55 @@
+/**
+ * What a {@link Download} exposes over JMX, under
+ * idcdm:type=Download,name=&lt;file name&gt;. Rates are measured over the last
+ * metrics interval, latencies are in microseconds unless named otherwise.
+ */
+public interface DownloadMetricsMBean {
+
+    String getFilename();
+
+    long getContentLength();
+
+    long getBytesWritten();
+
+    long getBytesReceived();
+
+    int getPercentage();
+
+    long getBytesPerSecond();
+
+    long getEtaSeconds();
+
+    int getConnections();
+
+    /**
+     * @return one line per getter: bytes/s and last time to first byte
+     */
+    String[] getConnectionStats();
+
+    int getQueueDepth();
+
+    long getQueueTimeP50();
+
+    long getQueueTimeP99();
+
+    long getWriteTimeP50();
+
+    long getWriteTimeP99();
+
+    long getWriteTimeMax();
+
+    long getTtfbP50();
+
+    long getRetries();
+
+    long getThrottles();
+
+    long getPoolExhausted();
+
+    long getRateLimit();
+
+    /**
+     * @param bytesPerSecond new limit for this download, 0 for none
+     */
+    void setRateLimit(long bytesPerSecond);
+}
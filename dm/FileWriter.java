@@ -1,17 +1,46 @@
-import java.util.concurrent.BlockingQueue;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class takes chunks from the queue, writes them to disk and updates the
  * file's metadata.
+ *
+ * Writes are positional (FileChannel.write(ByteBuffer, position)) or copies
+ * into a memory mapped view of the file, so there is no shared seek state and
+ * several threads may run the same writer.
+ *
+ * With -Didcdm.directWrite getters write their chunks through the same
+ * channel themselves, see {@link #deliver(Chunk)}. The writer threads then
+ * only count finished getters and print progress.
+ *
+ * In channel mode queued chunks pass through a {@link WriteCoalescer}, which
+ * merges neighbouring chunks and writes them in offset order, see
+ * -Didcdm.coalesceBytes.
+ *
+ * With -Didcdm.preallocate the file's blocks are reserved, or zero-filled
+ * in the background, before chunks land in them, see {@link Preallocator}.
  */
 public class FileWriter implements Runnable {
 
+    static final long MAP_REGION = 1L << 30; // a MappedByteBuffer is int indexed, so map the file in 1GB regions
+    private static final long POLL_TIMEOUT = 100; // ms. lets idle writers notice the download is done
+    private static final boolean CHECKSUMS = !"none".equals(Settings.CHECKSUM); // CRC32C every chunk
+    private static final boolean DIRECT_WRITE = Settings.DIRECT_WRITE; // getters write their own chunks
+
     private Download session; // the session this thread serves
-    private BlockingQueue<Chunk> outQueue; // the queue to right to
+    private ChunkRing outQueue; // the queue to right to
     private File target; // the file to download
     private File mtd; // the metadata file
     RandomAccessFile raf; // for better accesses to the file
+    private FileChannel channel; // positional writes
+    private MappedByteBuffer[] regions; // mapped views of the file, only in mmap mode
+    private MtdJournal journal; // persists progress for resume
+    private WriteCoalescer coalescer; // merges queued chunks, null when they are written as they come
+    private Preallocator preallocator; // reserves the file's blocks, null for a sparse file
+    private volatile boolean opened = false; // set once the file is open
+    private int perc = -1; // last percentage printed
 
     /**
      * serves a {@link Download#Download}
@@ -24,7 +53,7 @@ public class FileWriter implements Runnable {
         this.outQueue = session.getOutQueue();
     }
 
-    public boolean pushToQueue(Chunk ck, Range rn) {
+    public boolean pushToQueue(Chunk ck) {
         
         if (ck.isSignal()) { 
             // * this chunk contains no data, no need to parse anything
@@ -37,39 +66,170 @@ public class FileWriter implements Runnable {
         }
         
         try {
+            ck.setEnqueuedAt(System.nanoTime());
             outQueue.put(ck);
-            rn.pushPOS(ck.getSize_in_bytes());
         } catch (InterruptedException ie) {
             System.err.println("error on pushing regular chunk");
+            return false;
         }
         return true;
     }
     
     private void writeChunks() throws IOException {
-        int perc = session.getPercentage();
-        System.out.println(perc + "%");
+        reportProgress();
+        Chunk[] batch = new Chunk[Settings.WRITER_BATCH];
         try {
-            while (!session.downloadDone()) {
-                Chunk chunk = outQueue.take();
-                if (chunk.isSignal()) {
-                    session.signalDownloaderDone();
-       //             System.out.println("************************ CHUNK IS SIGNAL!");
-                } else {
-                    byte[] data = chunk.getData();
-                    long offset = chunk.getOffset();
-                    //System.out.println(new String(data));
-                    raf.seek(offset);
-                    raf.write(data);
-                    session.pushWritten(chunk.getSize_in_bytes());
-                    if (session.getPercentage() != perc){
-                        perc = session.getPercentage();
-                        System.out.println(perc + "%");
+            while (!session.isFinished()) {
+                long timeout = coalescer != null && !coalescer.isEmpty() ? Math.min(POLL_TIMEOUT, Settings.COALESCE_MS)
+                        : POLL_TIMEOUT;
+                int n = outQueue.drain(batch, timeout);
+                for (int i = 0; i < n; i++) {
+                    Chunk chunk = batch[i];
+                    batch[i] = null;
+                    if (chunk.isSignal()) {
+                        session.signalDownloaderDone();
+           //             System.out.println("************************ CHUNK IS SIGNAL!");
+                    } else if (!opened) {
+                        session.getBufferPool().release(chunk.getData()); // the download failed, keep draining for the getters
+                    } else {
+                        session.getMetrics().recordQueueTime(System.nanoTime() - chunk.getEnqueuedAt());
+                        if (coalescer != null) {
+                            coalescer.add(chunk);
+                        } else {
+                            writeChunk(chunk);
+                        }
                     }
                 }
+                if (coalescer != null && coalescer.isDue()) {
+                    coalescer.flush(this);
+                }
+                if (n > 0 || DIRECT_WRITE) {
+                    reportProgress(); // direct writes do not pass through here
+                }
             }
         } catch (InterruptedException ex) {
             System.out.println("Exception While Retrieving chunk from Q: " + ex);
         }
+        if (coalescer != null && !coalescer.isEmpty()) {
+            coalescer.flush(this); // the last chunks
+            reportProgress();
+        }
+    }
+
+    /**
+     * writes a chunk, releases its buffer and records it as written
+     */
+    private void writeChunk(Chunk chunk) throws IOException {
+        long started = System.nanoTime();
+        write(chunk.getData(), chunk.getSize_in_bytes(), chunk.getOffset());
+        session.getMetrics().recordWriteTime(System.nanoTime() - started);
+        written(chunk);
+    }
+
+    /**
+     * writes n contiguous chunks, in offset order, with one gathering write.
+     * only called by the coalescer, which keeps other writers away from the
+     * channel's position meanwhile
+     */
+    void writeRun(Chunk[] run, int n) throws IOException {
+        long started = System.nanoTime();
+        ByteBuffer[] srcs = new ByteBuffer[n];
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            srcs[i] = run[i].getData().duplicate();
+            srcs[i].position(0).limit(run[i].getSize_in_bytes());
+            total += run[i].getSize_in_bytes();
+        }
+        long bytes = total;
+        Preallocator.Write w = () -> {
+            long rest = bytes;
+            channel.position(run[0].getOffset());
+            while (rest > 0) {
+                rest -= channel.write(srcs, 0, n);
+            }
+        };
+        if (preallocator != null) {
+            preallocator.write(run[0].getOffset(), bytes, w);
+        } else {
+            w.run();
+        }
+        session.getMetrics().recordWriteTime(System.nanoTime() - started);
+        for (int i = 0; i < n; i++) {
+            written(run[i]);
+        }
+    }
+
+    /**
+     * releases a chunk's buffer once it is on disk and records it as written
+     */
+    private void written(Chunk chunk) {
+        long crc = CHECKSUMS ? Crc32c.of(chunk.getData(), chunk.getSize_in_bytes()) : Crc32c.UNKNOWN;
+        session.getBufferPool().release(chunk.getData());
+        session.pushWritten(chunk.getOffset(), chunk.getSize_in_bytes(), crc);
+        session.getChunkLatency().record(System.nanoTime() - chunk.getEnqueuedAt());
+    }
+
+    /**
+     * hands a chunk of data to the writers. with -Didcdm.directWrite the
+     * calling getter writes it itself, skipping the queue
+     * 
+     * @return true if the chunk was taken, and its buffer will be released
+     */
+    boolean deliver(Chunk ck) throws IOException {
+        if (!DIRECT_WRITE) {
+            return pushToQueue(ck);
+        }
+        if (!opened) {
+            init();
+            if (!opened) {
+                throw new IOException("the target file is not open");
+            }
+        }
+        ck.setEnqueuedAt(System.nanoTime());
+        writeChunk(ck);
+        return true;
+    }
+
+    /**
+     * writes len bytes of data at the given offset of the target file
+     */
+    private void write(ByteBuffer data, int len, long offset) throws IOException {
+        if (preallocator != null) {
+            preallocator.write(offset, len, () -> writeAt(data, len, offset));
+        } else {
+            writeAt(data, len, offset);
+        }
+    }
+
+    private void writeAt(ByteBuffer data, int len, long offset) throws IOException {
+        if (regions != null) {
+            int off = 0;
+            while (off < len) {
+                long at = offset + off;
+                MappedByteBuffer region = regions[(int) (at / MAP_REGION)];
+                int index = (int) (at % MAP_REGION);
+                int n = (int) Math.min(len - off, MAP_REGION - index);
+                region.put(index, data, off, n); // absolute put, no shared position
+                off += n;
+            }
+            return;
+        }
+        ByteBuffer buf = data.duplicate();
+        buf.position(0).limit(len);
+        while (buf.hasRemaining()) {
+            channel.write(buf, offset + buf.position());
+        }
+    }
+
+    /**
+     * prints the percentage whenever it changes
+     */
+    private synchronized void reportProgress() {
+        int p = session.getPercentage();
+        if (p != perc) {
+            perc = p;
+            System.out.println(session.getProgressPrefix() + perc + "%");
+        }
     }
 
     @Override
@@ -84,30 +244,107 @@ public class FileWriter implements Runnable {
     }
     
     /**
-     * 
+     * opens the target file. every writer thread calls this, only the first one
+     * does the work. fails the download if the file cannot be opened
      */
-    private void init(){
+    private synchronized void init(){
+        if (opened || session.isFailed()) {
+            return;
+        }
+        String step = "opening the target file"; // what failed, if something does
         try {
             target = new File(session.getFilename());
             raf = new RandomAccessFile(target, "rw");
             mtd = new File(session.getMetadataFilename());
             
-            raf.setLength(session.getContentLength()); // examine this.
+            boolean streaming = session.isStreaming(); // the file grows as the body arrives
+            if (!streaming) {
+                step = "setting the length of " + target;
+                raf.setLength(session.getContentLength()); // examine this.
+            }
+            channel = raf.getChannel();
+            if (!streaming && !Settings.PREALLOCATE.equals("sparse")
+                    && session.getProgress().getDoneBytes() < session.getContentLength()) {
+                preallocator = new Preallocator(channel, session.getContentLength(), session.getProgress());
+                preallocator.start(Settings.PREALLOCATE, target);
+            }
+            if (Settings.WRITE_MODE.equals("mmap") && !streaming) {
+                step = "mapping " + target;
+                mapRegions(session.getContentLength());
+            } else if (!DIRECT_WRITE && Settings.COALESCE_BYTES > 0) {
+                // held chunks keep their pool buffers, leave most of the pool to the getters
+                coalescer = new WriteCoalescer(Math.min(Settings.COALESCE_BYTES, Settings.POOL_BYTES / 4),
+                        Settings.COALESCE_MS);
+            }
+            // a streamed download does not resume. its ranges would each get the whole body
+            // again, and a single streamed restart reads it from byte 0 anyway
+            if (!streaming && session.getContentLength() >= 0) {
+                step = "writing the metadata " + mtd;
+                journal = new MtdJournal(mtd, session.getProgress(), channel, session.getChecksum(),
+                        session.getEtag());
+                journal.start();
+            }
+            opened = true;
         } catch (NullPointerException npe) {
-            System.err.println("file name is empty. Shutting down");
-            System.err.println(npe.getMessage());
-            IdcDm.usage();
-        } catch (FileNotFoundException fnfe){
-            System.err.println("file not found. Shutting down");
-            System.err.println(fnfe.getMessage());
-            IdcDm.usage();
+            session.fail("file name is empty");
         } catch (IOException ioe) {
-            System.err.println("problem setting RAF length. Shutting down");
-            System.err.println(ioe.getMessage());
-            System.exit(0);
+            session.fail("problem " + step + ": " + ioe.getMessage());
+        }
+
+    }
+
+    /**
+     * maps the whole file, one region at a time
+     */
+    private void mapRegions(long length) throws IOException {
+        int count = (int) ((length + MAP_REGION - 1) / MAP_REGION);
+        regions = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * MAP_REGION;
+            regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(MAP_REGION, length - start));
+        }
+    }
+
+    /**
+     * queues a written extent for the metadata journal
+     */
+    void journal(long offset, long len, long crc) {
+        MtdJournal j = journal;
+        if (j != null) {
+            j.record(offset, len, crc);
+        }
+    }
+
+    /**
+     * flushes mapped regions and the journal, and closes the target file.
+     * called once all writer threads are done. the metadata is removed if the
+     * download is complete
+     */
+    synchronized void close() {
+        try {
+            if (preallocator != null) {
+                preallocator.stop();
+                preallocator = null;
+            }
+            if (regions != null) {
+                for (MappedByteBuffer region : regions) {
+                    region.force();
+                }
+                regions = null;
+            }
+            if (journal != null) {
+                journal.stop();
+                if (session.downloadDone()) {
+                    journal.delete();
+                }
+                journal = null;
+            }
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException ioe) {
+            System.err.println("problem closing the target file: " + ioe.getMessage());
         }
-        
     }
-    
     
 }
@@ -1,149 +1,561 @@
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * A runnable class which downloads a given url. It reads CHUNK_SIZE at a time
- * and writs it into a BlockingQueue. It supports downloading a range of data,
+ * A runnable class which downloads a given url. It fills a chunk at a time and
+ * writs it into a BlockingQueue. Chunks start at CHUNK_SIZE and grow on fast
+ * links, so each handoff covers a few ms of transfer. It supports downloading a range of data,
  * and limiting the download rate using a token bucket.
+ *
+ * Ranges are taken from the session one at a time, or a few small ones at once
+ * when resuming a download with many holes. When the session has none left,
+ * it splits a range that another getter is still working on, so idle getters
+ * help with the slowest connection instead of exiting.
+ *
+ * A failed request gives whatever is left of its ranges back to the session,
+ * so the next request, here or on another getter, asks only for the missing
+ * bytes. The getter then backs off for a random time under an exponentially
+ * growing cap, and gives up after Settings.RETRIES failures in a row.
+ *
+ * Every request goes to a mirror picked by the session, weighted by the
+ * rates measured so far, see {@link Mirror}.
+ *
+ * When the server does not serve ranges, or does not say how long the file
+ * is, a single getter streams the whole body instead, see {@link #stream()}.
  */
 public class HTTPRangeGetter implements Runnable {
 
-    static final int CHUNK_SIZE = 4096; // constant
+    static final int CHUNK_SIZE = Settings.CHUNK_SIZE; // smallest handoff. -Didcdm.chunkSize, 4096 by default
+    static final long FILL_TARGET = 10_000_000L; // ns of transfer a handoff should cover
+    private static final int SCRATCH_SIZE = 64 * 1024;
     static final int CONNECT_TIMEOUT = 500; // constant
     public static final int READ_TIMEOUT = 2000; // constant
     private Download session;
-    private LinkedList<Range> ranges;
     private FileWriter fw;
-    final String DCRLF = "\r\n\r\n";
+    private BufferPool pool;
+    private byte[] scratch; // only used to fill direct buffers from a stream
+    private volatile long received; // bytes read by this getter, only written by its own thread
+    private volatile boolean retired; // asked to stop and leave its ranges to others
+    private int chunkSize = CHUNK_SIZE; // current handoff size, adapts to throughput
+    private volatile long lastTtfb; // ns from sending the last request to its response headers
+    private long streamed; // in stream mode, bytes of the body handed to the writers
 
     HTTPRangeGetter(Download session) {
         this.session = session;
         this.fw = session.getFileWriter();
-        ranges = new LinkedList<Range>();
+        this.pool = session.getBufferPool();
     }
 
     /**
-     * collects ranges from this {@link Download#rangeQueue}
+     * reads up to len bytes from the stream into a pooled buffer, at index
+     * 
+     * @return bytes read, or -1 at the end of the stream
      */
-    private void setRanges() {
-        boolean flag = true;
-        while (flag == true) {
-            Range rn = session.getRange();
-            if (rn.isSignal()) {
-                flag = false;
-            } else {
-//                System.out.println("ADDING RANGE: " + rn);
-                ranges.add(rn);
-            }
+    private int read(InputStream strm, ByteBuffer buf, int index, int len) throws IOException {
+        if (strm instanceof ReadableByteChannel) {
+            // straight from the socket, no copy through scratch
+            ByteBuffer dst = buf.duplicate();
+            dst.clear().limit(index + len).position(index);
+            return ((ReadableByteChannel) strm).read(dst);
+        }
+        if (buf.hasArray()) {
+            return strm.read(buf.array(), buf.arrayOffset() + index, len);
+        }
+        if (scratch == null) {
+            scratch = new byte[SCRATCH_SIZE];
+        }
+        int n = strm.read(scratch, 0, Math.min(len, scratch.length));
+        if (n > 0) {
+            buf.put(index, scratch, 0, n);
+        }
+        return n;
+    }
+
+    /**
+     * grows the handoff size while buffers fill quickly, shrinks it when they
+     * fill slowly, so each chunk covers about FILL_TARGET of transfer
+     * 
+     * @param nanos time it took to fill the last buffer
+     * @param full  whether the buffer was filled, rather than cut short by the
+     *              end of a range
+     */
+    private void adaptChunkSize(long nanos, boolean full) {
+        if (full && nanos < FILL_TARGET / 2 && chunkSize < pool.getMaxBufferSize()) {
+            chunkSize *= 2;
+        } else if (nanos > FILL_TARGET * 4 && chunkSize > pool.getBufferSize()) {
+            chunkSize /= 2;
         }
     }
 
     /**
+     * downloads a few ranges over one connection. a single range comes back
+     * as a plain 206 body, several as multipart/byteranges. stops as soon as
+     * every range is complete, which may be earlier than requested if a tail
+     * was stolen meanwhile
      * 
+     * @param ranges the ranges to fetch, in file order
+     * @param resp   a response already streaming them, or null to request
+     *               them
+     * @param mirror where to request them
      * @throws IOException
-     * @throws InterruptedException
      * @throws SocketTimeoutException
      */
-    private void downloadRange() throws IOException, InterruptedException, SocketTimeoutException {
-        URL url;
-        InputStream strm;
-        HttpURLConnection con;
-        String rangeParamString = "bytes=";
-        String boundary = "";
+    private void downloadRanges(List<Range> ranges, HttpPool.Response resp, Mirror mirror)
+            throws IOException, SocketTimeoutException {
+        String ifRange = null; // sent with our request, the header probe has none
+        if (resp == null) {
+            ifRange = session.ifRangeFor(mirror);
+            resp = request(ranges, mirror.getUrl(), ifRange);
+            if (resp == null) {
+                return;
+            }
+        }
 
-        if (ranges.size() == 0){
-            session.signalDownloaderDone();
+        // parse response
+        int respCode = resp.getStatus();
+        if ((respCode == 429 || respCode == 503) && Settings.ADAPTIVE) {
+            // the server wants fewer connections. leave our ranges to the others
+            resp.abort();
+            session.reportThrottle();
+            giveBack(ranges);
+            retired = true;
             return;
         }
+        if (respCode / 100 != 2) {
+            resp.abort();
+            throw new StatusException(respCode);
+        }
+
+        boolean drained = false; // read to the end, so the connection can be reused
+        try {
+            InputStream strm = resp.getBody();
+            if (respCode == 206) {
+                String boundary = MultipartParser.boundaryOf(resp.getHeader("Content-Type"));
+                if (boundary != null) {
+                    MultipartParser parts = new MultipartParser(strm, boundary);
+                    boolean more = true;
+                    while (more && parts.nextPart()) {
+                        more = fetchPart(parts, parts.getFirst(), parts.getLast(), ranges);
+                    }
+                    drained = more;
+                } else {
+                    long[] cr = MultipartParser.parseContentRange(resp.getHeader("Content-Range"));
+                    drained = fetchPart(strm, cr[0], cr[1], ranges);
+                }
+            } else if (ifRange != null) {
+                // If-Range did not match, the whole file as it is now
+                session.fail(session.getFilename() + " changed on the server during the download");
+                return;
+            } else {
+                // the server ignored the Range header and sent the whole file
+                drained = fetchPart(strm, 0, session.getContentLength() - 1, ranges);
+            }
+        } finally {
+            if (drained) {
+                resp.close();
+            } else {
+                resp.abort();
+            }
+        }
+        for (Range range : ranges) {
+            if (!range.isComplete()) {
+                throw new IOException("response ended before the range was complete");
+            }
+        }
+    }
+
+    /**
+     * asks for whatever is left of the ranges
+     * 
+     * @param ifRange sent as If-Range, or null
+     * @return the response, or null if every range is already complete
+     */
+    private HttpPool.Response request(List<Range> ranges, URL url, String ifRange) throws IOException {
+        String rangeParamString = "bytes=";
+
         // generate request headrs
         for (Range range : ranges) {
-            rangeParamString += range.getStringParams();
-            rangeParamString += ", ";
+            if (!range.isComplete()) {
+                rangeParamString += range.getStringParams() + ", ";
+            }
+        }
+        if (rangeParamString.length() == "bytes=".length()) {
+            return null;
         }
         rangeParamString = rangeParamString.substring(0, rangeParamString.length() - 2);
-     //   System.out.println(rangeParamString);
-        
 
         // request
-        url = session.getUrl();
-        con = (HttpURLConnection) url.openConnection();
-        con.setRequestMethod("GET");
-        con.setConnectTimeout(CONNECT_TIMEOUT);
-        con.setReadTimeout(READ_TIMEOUT);
-        con.setRequestProperty("Range", rangeParamString);
-        con.connect();
+        long sent = System.nanoTime();
+        HttpPool.Response resp = HttpPool.SHARED.open("GET", url, rangeParamString, ifRange);
+        lastTtfb = System.nanoTime() - sent;
+        session.getMetrics().recordTtfb(lastTtfb);
+        return resp;
+    }
 
-        // parse response
-        int respCode = con.getResponseCode();
-        if (respCode == 206) {
-            String contentType = con.getContentType();
-            int lastIndex = contentType.lastIndexOf("=");
-            boundary = contentType.substring(lastIndex + 1, contentType.length());
+    /**
+     * reads the bytes first..last from a part and hands them to the ranges
+     * they belong to. bytes no range is waiting for are skipped
+     * 
+     * @return false if no range needs anything more, and the rest of the
+     *         response can be dropped
+     */
+    private boolean fetchPart(InputStream strm, long first, long last, List<Range> ranges) throws IOException {
+        long at = first; // offset of the next byte in the stream
+        while (at <= last) {
+            if (retired) {
+                giveBack(ranges);
+                return false;
+            }
+            Range owner = null;
+            long next = Long.MAX_VALUE; // first byte some range is still waiting for
+            for (Range range : ranges) {
+                if (range.isComplete()) {
+                    continue;
+                }
+                long p = range.getPOS();
+                if (p == at) {
+                    owner = range;
+                    break;
+                }
+                if (p > at && p < next) {
+                    next = p;
+                }
+            }
+            if (owner == null) {
+                if (next == Long.MAX_VALUE) {
+                    return false;
+                }
+                // a part we did not ask for, or bytes we already have
+                long gap = Math.min(next, last + 1) - at;
+                long skipped = strm.skip(gap);
+                if (skipped <= 0) {
+                    throw new IOException("stream ended before the range was complete");
+                }
+                at += skipped;
+                continue;
+            }
+            // fill a whole buffer before handing it off, re-checking the owner's
+            // end on every read so a stolen tail is not read twice
+            ByteBuffer data = pool.borrow(chunkSize);
+            int space = Math.min(chunkSize, data.capacity());
+            boolean queued = false;
+            try {
+                long started = System.nanoTime();
+                int filled = 0;
+                int toRead;
+                try {
+                    while ((toRead = (int) Math.min(Math.min(owner.getRemaining(), last - at + 1) - filled,
+                            space - filled)) > 0) {
+                        int bytesRead = read(strm, data, filled, toRead);
+                        if (bytesRead == -1) {
+                            throw new IOException("stream ended before the range was complete");
+                        }
+                        filled += bytesRead;
+                        received += bytesRead;
+                        session.pushReceived(bytesRead);
+                        session.getTokenBucket().take(bytesRead);
+                        TokenBucket.GLOBAL.take(bytesRead);
+                    }
+                } catch (IOException ioe) {
+                    // keep what arrived before the connection broke, the retry starts after it
+                    int claimed = owner.claim(filled);
+                    if (claimed > 0) {
+                        queued = fw.deliver(new Chunk(data, at, claimed));
+                    }
+                    throw ioe;
+                }
+                adaptChunkSize(System.nanoTime() - started, filled == space);
+                int claimed = owner.claim(filled); // the end may have moved while we read
+                if (claimed > 0) {
+                    queued = fw.deliver(new Chunk(data, at, claimed));
+                }
+                at += filled;
+            } finally {
+                if (!queued) {
+                    pool.release(data);
+                }
+            }
         }
-        int Clength = con.getContentLength();
-        
-        strm = (InputStream) con.getContent();
-        // Range range = ranges.getFirst();
+        return true;
+    }
 
-        for (Range range : ranges) {
-            byte[] data = new byte[CHUNK_SIZE];
-            int toRead = (int) range.getRemaining();
-            if ( toRead < 0 || toRead > CHUNK_SIZE){
-                toRead = CHUNK_SIZE;
-            }
-//            System.out.println("***************************************");
-//            System.out.println("           Initiating a range");
-//            System.out.println("***************************************");
-//            System.out.println("dbg: printing range:");
-//            System.out.println(range);
-//            System.out.printf("b.len: %d, off: %d, len: %d \n",data.length,0,toRead);
-            int bytesRead = strm.read(data, 0, toRead);
-            String chunkData = new String(data);
-            System.out.println("initail chunk");
-            System.out.println(chunkData);
-            System.out.println(boundary);
-            int indexb = chunkData.indexOf(boundary);
-            int indexc = chunkData.indexOf(DCRLF);
-            if (indexb != -1) {
-                System.out.println("indexb: " + indexb);
-                chunkData = chunkData.substring(indexb + boundary.length(), chunkData.length());
-            } 
-            if (indexc != -1){
-                chunkData = chunkData.substring(indexc + DCRLF.length(), chunkData.length());
-                System.out.println("indexc: " + indexc);
-            }
-            Chunk ck = new Chunk(chunkData.getBytes(), range.getPOS(), bytesRead);
-            fw.pushToQueue(ck, range);
-            while (!range.isComplete()) {
-                toRead = (int) range.getRemaining();
-                if ( toRead < 0 || toRead > CHUNK_SIZE){
-                    toRead = CHUNK_SIZE;
-                }
-                data = new byte[toRead];
-                bytesRead = strm.read(data, 0, toRead);
-                ck = new Chunk(data, range.getPOS(), bytesRead);
-                fw.pushToQueue(ck, range);
-                
-            }
-        }
-        con.disconnect();
-    //    System.out.println("PUSHING SIGNAL  FROM  RANGE");
-        fw.pushToQueue(new Chunk(new byte[1], -1, -1), new Range(-1, -1, -1)); // Push an out of work
-                                                                                              // flag
+    /**
+     * downloads the whole file from the header probe's response, for servers
+     * that ignore Range or leave out the length. writes sequentially in the
+     * largest buffers the pool has. if the connection breaks, asks for the
+     * whole file again and skips what is already written
+     */
+    private void stream() throws IOException, InterruptedException {
+        HttpPool.Response resp = session.takeProbe(new ArrayList<Range>());
+        if (resp == null) {
+            return; // another getter is streaming it
+        }
+        ConnectionScheduler scheduler = session.getScheduler();
+        String host = ConnectionScheduler.hostKey(session.getUrl());
+        int failures = 0; // failed requests in a row
+        while (!session.isFailed()) {
+            scheduler.acquire(host);
+            long before = streamed;
+            try {
+                if (resp == null) {
+                    resp = HttpPool.SHARED.open("GET", session.getUrl(), null);
+                    if (resp.getStatus() / 100 != 2) {
+                        throw new StatusException(resp.getStatus());
+                    }
+                }
+                streamBody(resp.getBody());
+                if (session.isFailed()) {
+                    resp.abort();
+                    return;
+                }
+                resp.close();
+                session.streamEnded(streamed);
+                return;
+            } catch (IOException ioe) {
+                if (resp != null) {
+                    resp.abort();
+                }
+                if (streamed > before) {
+                    failures = 0;
+                }
+                if (!isRetryable(ioe) || ++failures > Settings.RETRIES) {
+                    throw ioe;
+                }
+                session.getMetrics().pushRetry();
+            } finally {
+                resp = null;
+                scheduler.release(host);
+            }
+            Thread.sleep(backoff(failures));
+        }
+        if (resp != null) {
+            resp.abort(); // the download failed before we got to it
+        }
+    }
+
+    /**
+     * reads a body that starts at byte 0 to its end, or to the file's length
+     * if known. skips what was streamed before
+     */
+    private void streamBody(InputStream strm) throws IOException {
+        long length = session.getContentLength(); // -1 if unknown
+        long skipped = 0;
+        while (skipped < streamed) {
+            long n = strm.skip(streamed - skipped);
+            if (n <= 0) {
+                if (strm.read() < 0) {
+                    throw new IOException("stream ended before the written part of the file");
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+        boolean eof = false;
+        while (!eof && (length < 0 || streamed < length)) {
+            if (session.isFailed()) {
+                return;
+            }
+            int size = pool.getMaxBufferSize();
+            if (length >= 0) {
+                size = (int) Math.min(size, length - streamed);
+            }
+            ByteBuffer data = pool.borrow(size);
+            int space = Math.min(size, data.capacity());
+            boolean queued = false;
+            try {
+                int filled = 0;
+                try {
+                    while (filled < space) {
+                        int bytesRead = read(strm, data, filled, space - filled);
+                        if (bytesRead == -1) {
+                            eof = true;
+                            break;
+                        }
+                        filled += bytesRead;
+                        received += bytesRead;
+                        session.pushReceived(bytesRead);
+                        session.getTokenBucket().take(bytesRead);
+                        TokenBucket.GLOBAL.take(bytesRead);
+                    }
+                } catch (IOException ioe) {
+                    // keep what arrived, the retry skips it
+                    if (filled > 0) {
+                        queued = fw.deliver(new Chunk(data, streamed, filled));
+                        streamed += filled;
+                    }
+                    throw ioe;
+                }
+                if (filled > 0) {
+                    queued = fw.deliver(new Chunk(data, streamed, filled));
+                    streamed += filled;
+                }
+            } finally {
+                if (!queued) {
+                    pool.release(data);
+                }
+            }
+        }
+        if (length >= 0 && streamed < length) {
+            throw new IOException("stream ended before the file was complete");
+        }
     }
 
     @Override
     public void run() {
-        setRanges();
         try {
-            downloadRange();
-        } catch (IOException | InterruptedException e) {
+            if (session.isStreaming()) {
+                stream();
+                return;
+            }
+            ConnectionScheduler scheduler = session.getScheduler();
+            int failures = 0; // failed requests in a row
+            while (!session.isFailed()) {
+                Mirror mirror = session.pickMirror();
+                String host = ConnectionScheduler.hostKey(mirror.getUrl());
+                scheduler.acquire(host);
+                try {
+                    List<Range> ranges = new ArrayList<Range>();
+                    HttpPool.Response probe = session.takeProbe(ranges); // the start of the file, already on its way
+                    if (probe == null) {
+                        ranges = session.getRanges(Settings.MAX_RANGES_PER_REQUEST);
+                    }
+                    if (ranges.isEmpty()) {
+                        break;
+                    }
+                    long before = received;
+                    long sent = System.nanoTime();
+                    try {
+                        downloadRanges(ranges, probe, mirror);
+                        mirror.record(received - before, System.nanoTime() - sent);
+                        failures = 0;
+                    } catch (IOException ioe) {
+                        // the next request starts where this one stopped
+                        giveBack(ranges);
+                        if (ioe instanceof SocketTimeoutException
+                                || ioe instanceof StatusException && ((StatusException) ioe).isThrottle()) {
+                            session.reportThrottle();
+                        }
+                        if (received > before) {
+                            failures = 0;
+                        }
+                        boolean fatal = !isRetryable(ioe);
+                        mirror.failed(fatal);
+                        if (fatal && session.hasLiveMirror()) {
+                            fatal = false; // another mirror may still have it
+                        }
+                        if (fatal || ++failures > Settings.RETRIES) {
+                            throw ioe;
+                        }
+                    } finally {
+                        for (Range range : ranges) {
+                            session.rangeDone(range);
+                        }
+                    }
+                    if (retired) {
+                        break;
+                    }
+                } finally {
+                    scheduler.release(host);
+                }
+                if (failures > 0) {
+                    Thread.sleep(backoff(failures));
+                }
+            }
+        } catch (IOException e) {
             System.err.println("Exception while fetching data from server: " + e);
+        } catch (InterruptedException ie) {
+            // the download is being torn down
+        } finally {
+            session.getterDone(this);
+            fw.pushToQueue(new Chunk(null, -1, -1)); // Push an out of work flag
+        }
+    }
+
+    /**
+     * @param failures failed requests in a row, at least 1
+     * @return ms to wait before the next request. random between half a cap
+     *         that doubles with every failure and the cap, so getters that
+     *         failed together do not retry together
+     */
+    static long backoff(int failures) {
+        long cap = Settings.RETRY_BASE_MS << Math.min(failures - 1, 30);
+        if (cap <= 0 || cap > Settings.RETRY_MAX_MS) {
+            cap = Settings.RETRY_MAX_MS;
+        }
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    /**
+     * @return false for errors another try will not fix, like a 404
+     */
+    private static boolean isRetryable(IOException ioe) {
+        if (ioe instanceof StatusException) {
+            int status = ((StatusException) ioe).getStatus();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        return true;
+    }
+
+    /**
+     * returns whatever is left of our ranges to the session
+     */
+    private void giveBack(List<Range> ranges) {
+        for (Range range : ranges) {
+            session.returnRange(range);
+        }
+    }
+
+    /**
+     * asks this getter to stop after the current chunk. its ranges go back to
+     * the session
+     */
+    void retire() {
+        retired = true;
+    }
+
+    /**
+     * @return bytes this getter read so far
+     */
+    long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return ns from sending the last request to its response headers
+     */
+    long getLastTtfb() {
+        return lastTtfb;
+    }
+
+    /**
+     * a response that was not 2xx
+     */
+    static class StatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        StatusException(int status) {
+            super("range request came back with status code: " + status);
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return whether the server asks for fewer requests
+         */
+        boolean isThrottle() {
+            return status == 429 || status == 503;
         }
-    //    System.out.println("downloader going to sleep");
     }
 }
@@ -0,0 +1,96 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values, e.g. latencies in nanoseconds.
+ *
+ * Buckets are log-linear: every power of two is split into 8 sub-buckets, so
+ * a reported value is within 12.5% of the recorded one. Recording is one
+ * LongAdder increment, cheap enough for the per-chunk path.
+ */
+class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS; // sub-buckets per power of two
+    private final LongAdder[] counts = new LongAdder[64 * SUB];
+
+    Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    void record(long value) {
+        counts[index(Math.max(0, value))].increment();
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    long getCount() {
+        long n = 0;
+        for (LongAdder c : counts) {
+            n += c.sum();
+        }
+        return n;
+    }
+
+    /**
+     * @param p between 0 and 1, e.g. 0.99
+     * @return the lower bound of the bucket holding the p'th value, 0 if empty
+     */
+    long percentile(double p) {
+        long[] snapshot = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return lowerBound(i);
+            }
+        }
+        return lowerBound(snapshot.length - 1);
+    }
+
+    /**
+     * @return the non-empty buckets in ascending order, each as {lower bound,
+     *         count}
+     */
+    long[][] buckets() {
+        long[][] all = new long[counts.length][];
+        int n = 0;
+        for (int i = 0; i < counts.length; i++) {
+            long c = counts[i].sum();
+            if (c > 0) {
+                all[n++] = new long[] { lowerBound(i), c };
+            }
+        }
+        return Arrays.copyOf(all, n);
+    }
+
+    static int index(long v) {
+        if (v < SUB) {
+            return (int) v;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (msb - SUB_BITS)) & (SUB - 1);
+        return (msb - SUB_BITS + 1) * SUB + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int msb = index / SUB - 1 + SUB_BITS;
+        long sub = index % SUB;
+        return (1L << msb) | (sub << (msb - SUB_BITS));
+    }
+}
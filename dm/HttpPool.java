@@ -0,0 +1,333 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens requests over connections shared by every getter and download.
+ *
+ * By default requests go through HttpURLConnection, whose keep-alive cache
+ * hands a finished connection to the next request for the same host, as
+ * long as the body was read to its end or closed rather than disconnected.
+ * With -Didcdm.transport=http2 (or -Didcdm.http2=true) they go through one
+ * shared java.net.http.HttpClient instead, which multiplexes every range as a
+ * stream over a single HTTP/2 connection when the server supports it, and
+ * pools HTTP/1.1 connections when it does not. With -Didcdm.transport=nio
+ * plain http requests go through {@link NioTransport}.
+ *
+ * The HttpClient has no read timeout. Its requests time out if the headers
+ * take too long, and a watchdog closes any body whose read waited longer
+ * than the read timeout, so a stalled stream fails like a stalled socket.
+ */
+class HttpPool implements Transport {
+
+    static final HttpPool SHARED = new HttpPool();
+
+    private volatile HttpClient client; // created on first use, only in http2 mode
+    private final Set<WatchedBody> watched = ConcurrentHashMap.newKeySet(); // open HttpClient bodies
+    private final NioTransport nio; // set in nio mode
+
+    private HttpPool() {
+        nio = Settings.TRANSPORT.equals("nio") ? new NioTransport() : null;
+    }
+
+    @Override
+    public Response open(String method, URL url, String range, String ifRange) throws IOException {
+        if (nio != null && url.getProtocol().equals("http")) {
+            return nio.open(method, url, range, ifRange);
+        }
+        if (Settings.HTTP2) {
+            return openHttpClient(method, url, range, ifRange);
+        }
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setRequestMethod(method);
+        con.setConnectTimeout(HTTPRangeGetter.CONNECT_TIMEOUT);
+        con.setReadTimeout(HTTPRangeGetter.READ_TIMEOUT);
+        if (range != null) {
+            con.setRequestProperty("Range", range);
+            if (ifRange != null) {
+                con.setRequestProperty("If-Range", ifRange);
+            }
+        }
+        con.connect();
+        int status = con.getResponseCode();
+        return new UrlResponse(status, con);
+    }
+
+    private Response openHttpClient(String method, URL url, String range, String ifRange) throws IOException {
+        HttpRequest.Builder req;
+        try {
+            req = HttpRequest.newBuilder(url.toURI());
+        } catch (URISyntaxException use) {
+            throw new IOException("bad url: " + url);
+        }
+        req.method(method, HttpRequest.BodyPublishers.noBody());
+        req.timeout(Duration.ofMillis(HTTPRangeGetter.CONNECT_TIMEOUT + HTTPRangeGetter.READ_TIMEOUT)); // until the headers
+        if (range != null) {
+            req.header("Range", range);
+            if (ifRange != null) {
+                req.header("If-Range", ifRange);
+            }
+        }
+        try {
+            HttpResponse<InputStream> resp = client().send(req.build(), HttpResponse.BodyHandlers.ofInputStream());
+            return new ClientResponse(resp, new WatchedBody(resp.body()));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for " + url);
+        }
+    }
+
+    private HttpClient client() {
+        HttpClient c = client;
+        if (c == null) {
+            synchronized (this) {
+                if (client == null) {
+                    ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "idcdm-http2-watchdog");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    long every = HTTPRangeGetter.READ_TIMEOUT / 4;
+                    watchdog.scheduleAtFixedRate(this::checkReads, every, every, TimeUnit.MILLISECONDS);
+                    client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+                            .followRedirects(HttpClient.Redirect.NORMAL)
+                            .connectTimeout(Duration.ofMillis(HTTPRangeGetter.CONNECT_TIMEOUT)).build();
+                }
+                c = client;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * closes the bodies whose current read has waited longer than the read
+     * timeout
+     */
+    private void checkReads() {
+        long now = System.nanoTime();
+        for (WatchedBody body : watched) {
+            body.check(now);
+        }
+    }
+
+    /**
+     * an HttpClient body that the watchdog closes when a read gets no data
+     * for {@link HTTPRangeGetter#READ_TIMEOUT} ms. the read then fails with a
+     * SocketTimeoutException, as it would on a socket
+     */
+    private class WatchedBody extends FilterInputStream {
+        private volatile long readingSince; // System.nanoTime() when the pending read started, 0 if there is none
+        private volatile boolean timedOut;
+
+        WatchedBody(InputStream in) {
+            super(in);
+            watched.add(this);
+        }
+
+        @Override
+        public int read() throws IOException {
+            readingSince = System.nanoTime();
+            try {
+                return super.read();
+            } catch (IOException ioe) {
+                throw timedOut(ioe);
+            } finally {
+                readingSince = 0;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            readingSince = System.nanoTime();
+            try {
+                return super.read(b, off, len);
+            } catch (IOException ioe) {
+                throw timedOut(ioe);
+            } finally {
+                readingSince = 0;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            readingSince = System.nanoTime();
+            try {
+                return super.skip(n);
+            } catch (IOException ioe) {
+                throw timedOut(ioe);
+            } finally {
+                readingSince = 0;
+            }
+        }
+
+        private IOException timedOut(IOException ioe) {
+            return timedOut ? new SocketTimeoutException("no data for " + HTTPRangeGetter.READ_TIMEOUT + "ms") : ioe;
+        }
+
+        void check(long now) {
+            long since = readingSince;
+            if (since != 0 && now - since > HTTPRangeGetter.READ_TIMEOUT * 1_000_000L) {
+                timedOut = true;
+                try {
+                    close(); // wakes the read up
+                } catch (IOException ioe) {
+                    // it is closed either way
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            watched.remove(this);
+            super.close();
+        }
+    }
+
+    /**
+     * a response whose headers have arrived. either {@link #close()} it once
+     * the body was read, to give the connection back, or {@link #abort()} it
+     */
+    abstract static class Response {
+        private final int status;
+
+        Response(int status) {
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the header's first value, or null
+         */
+        abstract String getHeader(String name);
+
+        /**
+         * @return the Content-Length header, or -1
+         */
+        long getContentLength() {
+            String v = getHeader("Content-Length");
+            try {
+                return v == null ? -1 : Long.parseLong(v.trim());
+            } catch (NumberFormatException nfe) {
+                return -1;
+            }
+        }
+
+        /**
+         * @return the body. it may also be a ReadableByteChannel, which reads
+         *         straight into a buffer
+         */
+        abstract InputStream getBody() throws IOException;
+
+        /**
+         * closes the body. the connection stays open for the next request if
+         * the body was read to its end, or is short enough to be skipped
+         */
+        abstract void close();
+
+        /**
+         * drops the connection, e.g. after an error or when most of the body is
+         * not needed
+         */
+        abstract void abort();
+    }
+
+    /**
+     * a response read through HttpURLConnection
+     */
+    private static class UrlResponse extends Response {
+        private final HttpURLConnection con;
+        private InputStream body;
+
+        UrlResponse(int status, HttpURLConnection con) {
+            super(status);
+            this.con = con;
+        }
+
+        @Override
+        String getHeader(String name) {
+            return con.getHeaderField(name);
+        }
+
+        @Override
+        InputStream getBody() throws IOException {
+            if (body == null) {
+                body = getStatus() / 100 == 2 ? con.getInputStream() : con.getErrorStream();
+            }
+            return body;
+        }
+
+        @Override
+        void close() {
+            try {
+                if (body != null) {
+                    body.close();
+                }
+            } catch (IOException ioe) {
+                abort();
+            }
+        }
+
+        @Override
+        void abort() {
+            con.disconnect();
+        }
+    }
+
+    /**
+     * a response read through the shared HttpClient
+     */
+    private static class ClientResponse extends Response {
+        private final HttpResponse<InputStream> resp;
+        private final InputStream body; // resp.body(), watched for stalls
+
+        ClientResponse(HttpResponse<InputStream> resp, InputStream body) {
+            super(resp.statusCode());
+            this.resp = resp;
+            this.body = body;
+        }
+
+        @Override
+        String getHeader(String name) {
+            return resp.headers().firstValue(name).orElse(null);
+        }
+
+        @Override
+        InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        void close() {
+            try {
+                body.close();
+            } catch (IOException ioe) {
+                abort();
+            }
+        }
+
+        @Override
+        void abort() {
+            try {
+                body.close();
+            } catch (IOException ioe) {
+                // nothing to do, it is going away anyway
+            }
+        }
+    }
+}
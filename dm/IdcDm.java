@@ -1,4 +1,14 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class IdcDm {
 
@@ -11,15 +21,31 @@ public class IdcDm {
     public static void main(String[] args) {
         int numConnections = 1;
 
-        if (args.length < 1 || args.length > 2) {
+        // the keep-alive cache keeps 5 idle connections per host by default,
+        // fewer than we run. must be set before the first connection
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(Math.max(Settings.ADAPTIVE_MAX, 16)));
+        }
+
+        if (args.length < 1) {
             usage();
-        } else if (args.length == 2) {
+        }
+        List<String> urls = new ArrayList<String>(Arrays.asList(args));
+        if (urls.size() > 1 && urls.get(urls.size() - 1).matches("\\d+")) {
             // recived a number of workers from user
-            numConnections = Integer.parseInt(args[1]);
+            numConnections = Integer.parseInt(urls.remove(urls.size() - 1));
         }
 
-        String url = args[0]; // TODO: parse better
-                              // divide connections
+        String url = urls.get(0); // the others are mirrors of it
+
+        File urlList = new File(url);
+        if (urlList.isFile()) {
+            if (urls.size() > 1) {
+                usage();
+            }
+            DownloadBatch(urlList, numConnections);
+            return;
+        }
 
         System.out.printf("Downloading");
         if (numConnections > 1) {
@@ -27,52 +53,184 @@ public class IdcDm {
         }
         System.out.printf("...\n");
 
-        DownloadURL(url, numConnections);
-        
+        if (!DownloadURL(urls, numConnections, null)) {
+            System.exit(1);
+        }
+
      // System.out.println("FINISH PROGRAM!");
     }
 
+    /**
+     * Downloads every url listed in a file, one per line. Runs a few downloads
+     * at once, all sharing numConnections connections, so a download that is
+     * finishing leaves its connections to the others.
+     *
+     * @param urlList        file listing the urls. blank lines and lines
+     *                       starting with # are skipped. a line may list
+     *                       several mirrors of a file, separated by spaces.
+     *                       a line saved under the same file name as an
+     *                       earlier one is skipped, and counts as failed
+     * @param numConnections number of concurrent connections, overall
+     */
+    private static void DownloadBatch(File urlList, int numConnections) {
+        List<List<String>> urls = new ArrayList<List<String>>();
+        try (BufferedReader br = new BufferedReader(new FileReader(urlList))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    urls.add(Arrays.asList(line.split("\\s+")));
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("cannot read url list. Shutting down");
+            System.err.println(ioe.getMessage());
+            usage();
+        }
+
+        System.out.printf("Downloading %d files using %d connections...\n", urls.size(), numConnections);
+        ConnectionScheduler scheduler = new ConnectionScheduler(numConnections, Settings.PER_HOST_CONNECTIONS);
+        ExecutorService sessions = newThreadPool();
+        Semaphore running = new Semaphore(Settings.BATCH_DOWNLOADS); // sessions at once
+        AtomicInteger failed = new AtomicInteger(0);
+        // a download is saved under the last part of its url, and so is its metadata.
+        // two entries with the same name would write over each other, keep the first
+        Map<String, String> targets = new HashMap<String, String>(); // file name -> url that gets it
+        List<List<String>> unique = new ArrayList<List<String>>();
+        for (List<String> url : urls) {
+            String name = Download.StripPath(url.get(0));
+            String first = targets.putIfAbsent(name, url.get(0));
+            if (first != null) {
+                System.err.println(name + ": skipping " + url.get(0) + ", " + first + " is saved under the same name");
+                failed.incrementAndGet();
+            } else {
+                unique.add(url);
+            }
+        }
+        for (List<String> url : unique) {
+            running.acquireUninterruptibly(); // before submitting, so no more than BATCH_DOWNLOADS sessions hold a thread
+            sessions.execute(() -> {
+                try {
+                    if (!DownloadURL(url, numConnections, scheduler)) {
+                        failed.incrementAndGet();
+                    }
+                } finally {
+                    running.release();
+                }
+            });
+        }
+        sessions.shutdown();
+        try {
+            sessions.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException ex) {
+            System.err.println("Exception While Waiting for Downloads: " + ex);
+        }
+        System.out.printf("%d of %d downloads succeeded\n", urls.size() - failed.get(), urls.size());
+        if (failed.get() > 0) {
+            System.exit(1); // like a single download that failed
+        }
+    }
+
     /**
      * Initiate the file's metadata, and iterate over missing ranges. For each: 1.
      * Setup the Queue, Download session, FileWriter and a pool of HTTPRangeGetters.
-     * Join the HTTPRangeGetters, send finish marker to the Queue and terminate the
-     * TokenBucket 3. Join the FileWriter and RateLimiter
+     * Join the HTTPRangeGetters, send finish marker to the Queue. 3. Join the
+     * FileWriter. The TokenBucket needs no thread of its own
      *
      * Finally, print "Download succeeded/failed" and delete the metadata as needed.
      *
-     * @param url            URL to download
+     * @param urls           URL to download, followed by mirrors of it
      * @param numConnections number of concurrent connections
+     * @param scheduler      connection permits shared by a batch, or null
+     * @return true if the download completed
+     */
+    private static boolean DownloadURL(List<String> urls, int numConnections, ConnectionScheduler scheduler) {
+        Download session = new Download(urls, numConnections, scheduler);
+        if (scheduler != null) {
+            session.setProgressPrefix(session.getFilename() + ": ");
+        }
+        return runSession(session);
+    }
+
+    /**
+     * Runs the writers and getters of a session until it is done.
+     *
+     * @param session an initialized download, possibly one that failed to
+     *                initialize
+     * @return true if the download completed
      */
-    private static void DownloadURL(String url, int numConnections) {
-        int numConsCounter = numConnections;
-        Download session = new Download(url, numConnections);
+    static boolean runSession(Download session) {
+        if (session.isFailed()) {
+            session.end();
+            System.out.println(session.getProgressPrefix() + "Download failed");
+            return false;
+        }
+        int numConnections = session.getNumConnections();
         FileWriter fw = session.getFileWriter();
-        Thread fileWriterThread = new Thread(fw);
-        fileWriterThread.start();
-        ThreadPoolExecutor workerThreadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(numConnections);
-        for (int i = 0; i < numConnections; i++) {
-            workerThreadPool.execute(new Thread(new HTTPRangeGetter(session)));
+        ExecutorService workerThreadPool = newThreadPool(); // the controller may add getters
+        List<Future<?>> fileWriters = new ArrayList<Future<?>>();
+        for (int i = 0; i < Settings.WRITER_THREADS; i++) {
+            fileWriters.add(workerThreadPool.submit(fw));
+        }
+        session.startGetters(workerThreadPool, numConnections);
+        Thread controllerThread = null;
+        if (Settings.ADAPTIVE) {
+            controllerThread = new Thread(new ConnectionController(session));
+            controllerThread.setDaemon(true);
+            controllerThread.start();
         }
         try {
+       //     System.out.println("BEFORE JOIN");
+            for (Future<?> fileWriter : fileWriters) {
+                fileWriter.get();
+            }
+            if (controllerThread != null) {
+                controllerThread.interrupt();
+            }
      //       System.out.println("BEFORE AWAIT");
             workerThreadPool.shutdown();
-       //     System.out.println("BEFORE JOIN");
-            fileWriterThread.join();
        //     System.out.println("AFTER JOIN");
-        } catch (InterruptedException ex) {
+        } catch (InterruptedException | ExecutionException ex) {
             System.err.println("Exception While Collecting Data: " + ex);
             ex.printStackTrace();
         }
+        boolean succeeded = !session.isFailed() && session.downloadDone() && session.verify();
+        if (succeeded) {
+            session.storeInCache();
+        }
         session.end();
+        System.out.println(session.getProgressPrefix() + (succeeded ? "Download succeeded" : "Download failed"));
      //   System.out.println("Download Finished!");
+        return succeeded;
+    }
 
+    /**
+     * @return a thread per task executor. virtual threads with
+     *         -Didcdm.virtualThreads=true on a JVM that has them, cached
+     *         platform threads otherwise
+     */
+    static ExecutorService newThreadPool() {
+        if (Settings.VIRTUAL_THREADS) {
+            try {
+                // looked up reflectively so the code still builds for older JVMs
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException roe) {
+                if (!virtualWarned) {
+                    virtualWarned = true;
+                    System.err.println("virtual threads need java 21 or later, using platform threads");
+                }
+            }
+        }
+        return Executors.newCachedThreadPool();
     }
 
+    private static volatile boolean virtualWarned = false;
+
     /**
      * prints the usage massege
      */
     public static void usage() {
-        System.err.printf("usage:\n\tjava IdcDm URL|URL-LIST-FILE [MAX-CONCURRENT-CONNECTIONS]\n");
+        System.err.printf("usage:\n\tjava IdcDm URL [MIRROR-URL...]|URL-LIST-FILE [MAX-CONCURRENT-CONNECTIONS]\n");
         System.exit(1);
     }
 
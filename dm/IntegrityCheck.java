@@ -0,0 +1,269 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.zip.CRC32C;
+
+/**
+ * Checks a finished download against a known digest, without reading the
+ * whole file a second time.
+ *
+ * The expected digest comes from -Didcdm.checksum (crc32c:HEX or sha256:HEX),
+ * or else from the server: a Digest, Repr-Digest or x-goog-hash header. An
+ * ETag is never used, it is an opaque validator even when it looks like a
+ * SHA-256. The digest is kept in the resume metadata, since a resumed
+ * download does not ask for the headers again.
+ *
+ * CRC32C comes for free: the writers checksum every chunk and
+ * {@link ProgressMap} combines the results as extents join. SHA-256 has to
+ * see the bytes in order, so a background thread follows the written prefix
+ * of the file and hashes it while it is still in the page cache. A resumed
+ * download hashes what is already on disk first.
+ */
+class IntegrityCheck implements Runnable {
+
+    static final String CRC32C = "crc32c";
+    static final String SHA256 = "sha256";
+    static final IntegrityCheck NONE = new IntegrityCheck(null, null, null);
+    private static final int READ_SIZE = 1 << 20;
+    private static final long FOLLOW_MS = 50; // how often the hashing thread looks for newly written bytes
+
+    private final String algorithm; // CRC32C, SHA256, or null if there is nothing to check against
+    private final String expected; // lowercase hex
+    private final String source; // where the expected digest came from
+    private Download session;
+    private MessageDigest sha;
+    private long hashed; // bytes of the file fed to sha
+    private volatile boolean stopped = false;
+    private Thread thread;
+
+    private IntegrityCheck(String algorithm, String expected, String source) {
+        this.algorithm = algorithm;
+        this.expected = expected;
+        this.source = source;
+    }
+
+    /**
+     * @param spec   ALGORITHM:HEX, e.g. crc32c:1a2b3c4d, or null
+     * @param source where the spec came from, for messages
+     * @return the check, {@link #NONE} for a null or unknown spec
+     */
+    static IntegrityCheck parse(String spec, String source) {
+        if (spec == null || spec.equals("none")) {
+            return NONE;
+        }
+        int colon = spec.indexOf(':');
+        if (colon < 0) {
+            System.err.println("ignoring checksum " + spec + ", expected crc32c:HEX or sha256:HEX");
+            return NONE;
+        }
+        String alg = spec.substring(0, colon).trim().toLowerCase(Locale.ROOT).replace("-", "");
+        String hex = spec.substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+        if (alg.equals(CRC32C) && hex.matches("[0-9a-f]{1,8}")) {
+            return new IntegrityCheck(CRC32C, String.format("%08x", Long.parseLong(hex, 16)), source);
+        }
+        if (alg.equals(SHA256) && hex.matches("[0-9a-f]{64}")) {
+            return new IntegrityCheck(SHA256, hex, source);
+        }
+        System.err.println("ignoring checksum " + spec + ", expected crc32c:HEX or sha256:HEX");
+        return NONE;
+    }
+
+    /**
+     * picks what to check a new download against: -Didcdm.checksum, or a
+     * digest the server sent along with the headers
+     * 
+     * @param resp the response to the header query
+     */
+    static IntegrityCheck fromResponse(HttpPool.Response resp) {
+        if (Settings.CHECKSUM != null) {
+            return parse(Settings.CHECKSUM, "-Didcdm.checksum");
+        }
+        String[] headers = { "Repr-Digest", "Digest", "x-goog-hash" };
+        IntegrityCheck crc = NONE;
+        for (String header : headers) {
+            String v = resp.getHeader(header);
+            if (v == null) {
+                continue;
+            }
+            for (String item : v.split(",")) {
+                int eq = item.indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                String alg = item.substring(0, eq).trim().toLowerCase(Locale.ROOT).replace("-", "");
+                String value = item.substring(eq + 1).trim();
+                if (value.length() > 1 && value.startsWith(":") && value.endsWith(":")) {
+                    value = value.substring(1, value.length() - 1); // structured field byte sequence
+                }
+                byte[] raw;
+                try {
+                    raw = Base64.getDecoder().decode(value);
+                } catch (IllegalArgumentException iae) {
+                    continue;
+                }
+                if (alg.equals(SHA256) && raw.length == 32) {
+                    return new IntegrityCheck(SHA256, toHex(raw), "the " + header + " header");
+                }
+                if (alg.equals(CRC32C) && raw.length == 4 && crc == NONE) {
+                    crc = new IntegrityCheck(CRC32C, toHex(raw), "the " + header + " header");
+                }
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * @return ALGORITHM:HEX, as {@link #parse} reads it, or null for NONE
+     */
+    String toSpec() {
+        return algorithm == null ? null : algorithm + ":" + expected;
+    }
+
+    /**
+     * starts hashing the download as it is written, if the check needs it
+     */
+    synchronized void start(Download session) {
+        this.session = session;
+        if (!SHA256.equals(algorithm) || thread != null) {
+            return;
+        }
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            System.err.println("SHA-256 is not available, the download will not be checked");
+            return;
+        }
+        thread = new Thread(this, "digest");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        ProgressMap progress = session.getProgress();
+        ByteBuffer buf = ByteBuffer.allocateDirect(READ_SIZE);
+        FileChannel data = null;
+        try {
+            while (!stopped) {
+                long length = session.getContentLength(); // set at the end of a stream of unknown length
+                if (length >= 0 && hashed >= length) {
+                    break;
+                }
+                long end = progress.getPrefixEnd();
+                if (end <= hashed) {
+                    Thread.sleep(FOLLOW_MS);
+                    continue;
+                }
+                if (data == null) {
+                    data = new RandomAccessFile(session.getFilename(), "r").getChannel();
+                }
+                buf.clear().limit((int) Math.min(READ_SIZE, end - hashed));
+                int n = data.read(buf, hashed);
+                if (n < 0) {
+                    break;
+                }
+                buf.flip();
+                sha.update(buf);
+                hashed += n;
+            }
+        } catch (IOException ioe) {
+            System.err.println("problem hashing the download: " + ioe.getMessage());
+        } catch (InterruptedException ie) {
+            // stopped
+        } finally {
+            try {
+                if (data != null) {
+                    data.close();
+                }
+            } catch (IOException ioe) {
+                // read only
+            }
+        }
+    }
+
+    /**
+     * waits for the hashing thread, if any. call once the download is over
+     */
+    void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t == null) {
+            return;
+        }
+        if (!session.downloadDone()) {
+            stopped = true; // a partial hash is of no use
+        }
+        try {
+            t.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * compares the finished download with the expected digest, and reports a
+     * mismatch
+     * 
+     * @return false if the file does not match, true if it does or there is
+     *         nothing to check against
+     */
+    boolean verify() {
+        if (algorithm == null) {
+            return true;
+        }
+        stop();
+        String actual;
+        try {
+            if (CRC32C.equals(algorithm)) {
+                long crc = session.getProgress().getCrc();
+                if (crc == Crc32c.UNKNOWN) {
+                    crc = crcOfFile(); // some extents lost their CRC, e.g. after a resume
+                }
+                actual = String.format("%08x", crc);
+            } else if (sha != null && hashed == session.getContentLength()) {
+                actual = toHex(sha.digest());
+            } else {
+                System.err.println("could not hash the download, it was not checked");
+                return true;
+            }
+        } catch (IOException ioe) {
+            System.err.println("could not read the download back to check it: " + ioe.getMessage());
+            return false;
+        }
+        if (!actual.equals(expected)) {
+            System.err.println(session.getProgressPrefix() + "checksum mismatch: expected " + algorithm + " "
+                    + expected + " from " + source + ", got " + actual);
+            return false;
+        }
+        return true;
+    }
+
+    private long crcOfFile() throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buf = ByteBuffer.allocateDirect(READ_SIZE);
+        try (FileChannel data = new RandomAccessFile(new File(session.getFilename()), "r").getChannel()) {
+            while (data.read(buf) > 0) {
+                buf.flip();
+                crc.update(buf);
+                buf.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static String toHex(byte[] raw) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : raw) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the metrics of every running download once per interval, and with
+ * -Didcdm.metricsFile writes them all to a JSON file. The file is written
+ * aside and renamed into place, so readers never see half a snapshot.
+ */
+class MetricsReporter implements Runnable {
+
+    static final MetricsReporter SHARED = new MetricsReporter();
+
+    private final CopyOnWriteArrayList<DownloadMetrics> downloads = new CopyOnWriteArrayList<DownloadMetrics>();
+    private ScheduledExecutorService timer;
+
+    private MetricsReporter() {
+    }
+
+    /**
+     * starts reporting on a download, and registers its MBean
+     */
+    synchronized void add(DownloadMetrics m) {
+        m.register();
+        downloads.add(m);
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleAtFixedRate(this, Settings.METRICS_INTERVAL_MS, Settings.METRICS_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * stops reporting on a download, after a last snapshot
+     */
+    synchronized void remove(DownloadMetrics m) {
+        m.sample();
+        writeSnapshot();
+        downloads.remove(m);
+        m.unregister();
+    }
+
+    @Override
+    public void run() {
+        for (DownloadMetrics m : downloads) {
+            m.sample();
+        }
+        writeSnapshot();
+    }
+
+    private synchronized void writeSnapshot() {
+        if (Settings.METRICS_FILE == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"time\":").append(System.currentTimeMillis()).append(",\"downloads\":[");
+        boolean first = true;
+        for (DownloadMetrics m : downloads) {
+            sb.append(first ? "" : ",").append(m.toJson());
+            first = false;
+        }
+        sb.append("]}\n");
+        File target = new File(Settings.METRICS_FILE);
+        File tmp = new File(Settings.METRICS_FILE + ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                fos.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            System.err.println("problem writing metrics snapshot: " + ioe.getMessage());
+        }
+    }
+}
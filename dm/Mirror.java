@@ -0,0 +1,138 @@
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One of several equivalent urls a {@link Download} fetches ranges from,
+ * with what its getters measured of it.
+ *
+ * Every finished request feeds a smoothed rate. Getters pick a mirror per
+ * request at random, weighted by that rate, so fast mirrors serve most of
+ * the file. A mirror far slower than the best one is demoted to an
+ * occasional probe. A failed request benches the mirror for a back-off that
+ * grows with every failure in a row, and a mirror that keeps failing, or
+ * answers with an error another try will not fix, is dropped.
+ */
+class Mirror {
+
+    static final double SMOOTHING = 0.3; // weight of the newest request in the rate
+    static final double SLOW = 0.125; // a mirror under this fraction of the best rate is demoted
+    static final double PROBE_SHARE = 0.02; // requests a demoted mirror still gets, relative to the best
+
+    private final URL url;
+    private final String etag; // the ETag it answered with when checked, or null
+    private double rate = -1; // bytes per second, -1 until a request finished
+    private int failures; // failed requests in a row
+    private long benchedUntil; // System.nanoTime() before which it gets no requests
+    private boolean dropped;
+
+    Mirror(URL url) {
+        this(url, null);
+    }
+
+    Mirror(URL url, String etag) {
+        this.url = url;
+        this.etag = etag;
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    String getEtag() {
+        return etag;
+    }
+
+    /**
+     * records a request that read bytes in nanos, counting from when it was
+     * sent
+     */
+    synchronized void record(long bytes, long nanos) {
+        failures = 0;
+        if (bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        double r = bytes * 1e9 / nanos;
+        rate = rate < 0 ? r : rate + SMOOTHING * (r - rate);
+    }
+
+    /**
+     * records a failed request, and benches the mirror for a while
+     *
+     * @param fatal another try will not help, e.g. a 404
+     */
+    synchronized void failed(boolean fatal) {
+        failures++;
+        if (fatal || failures > Settings.RETRIES) {
+            dropped = true;
+        }
+        benchedUntil = System.nanoTime() + HTTPRangeGetter.backoff(failures) * 1_000_000L;
+    }
+
+    synchronized double getRate() {
+        return rate;
+    }
+
+    synchronized boolean isDropped() {
+        return dropped;
+    }
+
+    synchronized boolean isBenched(long now) {
+        return now - benchedUntil < 0;
+    }
+
+    /**
+     * @return the mirror for the next request, picked at random weighted by
+     *         the measured rates. mirrors not measured yet get the best rate,
+     *         so they are tried early. if every mirror is benched or dropped,
+     *         the first one that is not dropped, or the first one
+     */
+    static Mirror pick(List<Mirror> mirrors) {
+        if (mirrors.size() == 1) {
+            return mirrors.get(0);
+        }
+        long now = System.nanoTime();
+        double best = 0;
+        for (Mirror m : mirrors) {
+            best = Math.max(best, m.getRate());
+        }
+        double[] weights = new double[mirrors.size()];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            Mirror m = mirrors.get(i);
+            if (m.isDropped() || m.isBenched(now)) {
+                continue;
+            }
+            double r = m.getRate();
+            if (r < 0) {
+                weights[i] = best > 0 ? best : 1;
+            } else if (r < best * SLOW) {
+                weights[i] = best * PROBE_SHARE; // keeps measuring it, in case it recovers
+            } else {
+                weights[i] = r;
+            }
+            total += weights[i];
+        }
+        if (total <= 0) {
+            for (Mirror m : mirrors) {
+                if (!m.isDropped()) {
+                    return m;
+                }
+            }
+            return mirrors.get(0);
+        }
+        double x = ThreadLocalRandom.current().nextDouble(total);
+        int last = 0; // last candidate, in case rounding leaves x at the end
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] <= 0) {
+                continue;
+            }
+            x -= weights[i];
+            last = i;
+            if (x < 0) {
+                break;
+            }
+        }
+        return mirrors.get(last);
+    }
+}
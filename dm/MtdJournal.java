@@ -0,0 +1,253 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Persists download progress for resume.
+ *
+ * The metadata is a snapshot file (a serialized {@link Download.MtdFileOpaque})
+ * plus an append-only journal of the extents written since that snapshot.
+ * Writers only queue extents, a background thread appends them every flush
+ * interval. The target file is forced before the journal, so the journal
+ * never claims bytes that are not on disk. Once the journal grows past a
+ * limit it is folded into a new snapshot, written aside and renamed into
+ * place, and then truncated.
+ *
+ * Journal records carry the CRC32C of their extent. On resume every extent
+ * written since the last snapshot is read back and checked, so a torn write
+ * is downloaded again instead of being trusted, without rereading the file.
+ */
+class MtdJournal implements Runnable {
+
+    static final String JOURNAL_SUFFIX = ".log";
+    static final int RECORD_SIZE = 32; // offset, length, crc, check
+    private static final long CHECK_MAGIC = 0x1DCD3A7A1DCD3A7BL;
+
+    private final File snapshot; // the .mtd file
+    private final File journal; // the .mtd.log file
+    private final ProgressMap progress; // live progress, source of snapshots
+    private final FileChannel data; // the target file
+    private final String checksum; // expected digest of the download, kept in snapshots
+    private final String etag; // the server's ETag, kept in snapshots
+    private final ConcurrentLinkedQueue<long[]> pending; // extents not yet in the journal
+    private FileChannel log;
+    private long records; // records in the journal since the last snapshot
+    private volatile boolean running = true;
+    private final Object wakeup = new Object(); // notified on stop
+    private Thread thread;
+
+    MtdJournal(File snapshot, ProgressMap progress, FileChannel data, String checksum, String etag) {
+        this.snapshot = snapshot;
+        this.journal = journalFor(snapshot);
+        this.progress = progress;
+        this.data = data;
+        this.checksum = checksum;
+        this.etag = etag;
+        this.pending = new ConcurrentLinkedQueue<long[]>();
+    }
+
+    static File journalFor(File snapshot) {
+        return new File(snapshot.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * writes a fresh snapshot and starts the flushing thread
+     */
+    void start() throws IOException {
+        writeSnapshot(progress.copy());
+        log = new RandomAccessFile(journal, "rw").getChannel();
+        log.truncate(0);
+        thread = new Thread(this, "mtd-journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * queues an extent for the journal. never blocks
+     */
+    void record(long offset, long len, long crc) {
+        pending.offer(new long[] { offset, len, crc });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            // wait rather than sleep, interrupting a thread in FileChannel I/O
+            // would close the channel
+            synchronized (wakeup) {
+                try {
+                    if (running) {
+                        wakeup.wait(Settings.MTD_FLUSH_MS);
+                    }
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+            try {
+                flush();
+            } catch (IOException ioe) {
+                System.err.println("problem writing the metadata journal: " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * appends every queued extent, or folds them into a new snapshot if the
+     * journal got too long
+     */
+    private synchronized void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<long[]> batch = new ArrayList<long[]>();
+        long[] e;
+        while ((e = pending.poll()) != null) {
+            batch.add(e);
+        }
+        // extents are marked in the progress map before they are queued, and
+        // written before they are marked, so the force below covers the copy
+        ProgressMap durable = progress.copy();
+        data.force(false); // the data must be durable before the metadata says so
+        if (records + batch.size() >= Settings.MTD_COMPACT_RECORDS) {
+            writeSnapshot(durable);
+            log.truncate(0);
+            records = 0;
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 256);
+        for (long[] x : batch) {
+            if (!buf.hasRemaining()) {
+                writeFully(buf);
+            }
+            buf.putLong(x[0]).putLong(x[1]).putLong(x[2]).putLong(x[0] ^ x[1] ^ x[2] ^ CHECK_MAGIC);
+            records++;
+        }
+        writeFully(buf);
+        log.force(false);
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            log.write(buf, log.size());
+        }
+        buf.clear();
+    }
+
+    /**
+     * writes the current progress next to the snapshot and renames it over
+     * the old one, so a crash leaves either the old or the new snapshot
+     */
+    private void writeSnapshot(ProgressMap copy) throws IOException {
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+                ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))) {
+            oos.writeObject(new Download.MtdFileOpaque(copy.getContentLength(), copy.getDoneBytes(), copy, checksum,
+                    etag));
+            oos.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * stops the thread after a last flush
+     */
+    void stop() {
+        synchronized (wakeup) {
+            running = false;
+            wakeup.notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush();
+            if (log != null) {
+                log.close();
+            }
+        } catch (IOException ioe) {
+            System.err.println("problem writing the metadata journal: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * removes the metadata once the download is complete
+     */
+    void delete() {
+        journal.delete();
+        snapshot.delete();
+    }
+
+    /**
+     * replays a journal into a progress map read from the snapshot. stops at
+     * the first torn or corrupt record. extents whose bytes on disk do not
+     * match their CRC are left out, so they are downloaded again
+     * 
+     * @param target the downloaded file, to check extents against
+     * @return number of extents that did not match
+     */
+    static long replay(File snapshot, ProgressMap progress, File target) throws IOException {
+        File journal = journalFor(snapshot);
+        if (!journal.exists()) {
+            return 0;
+        }
+        long torn = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+                FileChannel data = target.exists() ? new RandomAccessFile(target, "r").getChannel() : null) {
+            ByteBuffer buf = null;
+            while (true) {
+                long offset, len, crc, check;
+                try {
+                    offset = in.readLong();
+                    len = in.readLong();
+                    crc = in.readLong();
+                    check = in.readLong();
+                } catch (EOFException eof) {
+                    break;
+                }
+                if ((offset ^ len ^ crc ^ CHECK_MAGIC) != check) {
+                    break;
+                }
+                if (progress.isDone(offset, len)) {
+                    continue; // already in the snapshot
+                }
+                if (crc != Crc32c.UNKNOWN) {
+                    if (buf == null || buf.capacity() < len) {
+                        buf = ByteBuffer.allocate((int) len);
+                    }
+                    if (data == null || crc != readCrc(data, offset, (int) len, buf)) {
+                        torn++;
+                        continue;
+                    }
+                }
+                progress.markDone(offset, len, crc);
+            }
+        }
+        return torn;
+    }
+
+    /**
+     * @return CRC32C of len bytes of the file at offset, UNKNOWN if the file
+     *         is shorter
+     */
+    private static long readCrc(FileChannel data, long offset, int len, ByteBuffer buf) throws IOException {
+        buf.clear().limit(len);
+        while (buf.hasRemaining()) {
+            if (data.read(buf, offset + buf.position()) < 0) {
+                return Crc32c.UNKNOWN;
+            }
+        }
+        return Crc32c.of(buf, len);
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a multipart/byteranges response body, one part at a time.
+ *
+ * A byte level state machine that never decodes the body. It scans for the
+ * boundary, reads the part headers up to the empty line, and takes the part's
+ * length from its Content-Range header, so body bytes are counted rather than
+ * searched through. While a part is open, read() returns its body bytes and
+ * -1 at its end, so the parser can be read like any other stream.
+ */
+class MultipartParser extends InputStream {
+
+    private static final int BOUNDARY = 0, HEADERS = 1, BODY = 2, DONE = 3;
+    private static final int MAX_HEADER_LINE = 8192;
+
+    private final InputStream in;
+    private final byte[] delimiter; // "--" + boundary
+    private final byte[] buf = new byte[8192]; // lookahead
+    private int pos = 0, lim = 0; // unread bytes are buf[pos..lim)
+    private int state = BOUNDARY;
+    private long first, last; // byte range of the current part
+    private long remaining; // body bytes left in the current part
+
+    MultipartParser(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the boundary parameter of a multipart content type, or null
+     */
+    static String boundaryOf(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/byteranges")) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.toLowerCase().startsWith("boundary=")) {
+                String b = param.substring("boundary=".length());
+                if (b.length() > 1 && b.startsWith("\"") && b.endsWith("\"")) {
+                    b = b.substring(1, b.length() - 1);
+                }
+                return b;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * parses a Content-Range header such as "bytes 0-499/1234"
+     * 
+     * @return first byte, last byte and total length (-1 if unknown)
+     * @throws IOException if the header is malformed
+     */
+    static long[] parseContentRange(String header) throws IOException {
+        try {
+            String v = header.trim();
+            if (!v.startsWith("bytes ")) {
+                throw new IOException("bad Content-Range: " + header);
+            }
+            v = v.substring("bytes ".length()).trim();
+            int dash = v.indexOf('-');
+            int slash = v.indexOf('/');
+            long f = Long.parseLong(v.substring(0, dash).trim());
+            long l = Long.parseLong(v.substring(dash + 1, slash).trim());
+            String t = v.substring(slash + 1).trim();
+            return new long[] { f, l, t.equals("*") ? -1 : Long.parseLong(t) };
+        } catch (RuntimeException re) {
+            throw new IOException("bad Content-Range: " + header);
+        }
+    }
+
+    /**
+     * skips whatever is left of the current part and opens the next one
+     * 
+     * @return false once the closing boundary is reached
+     */
+    boolean nextPart() throws IOException {
+        while (state == BODY && remaining > 0) {
+            if (skip(remaining) <= 0) {
+                throw new IOException("multipart body ended inside a part");
+            }
+        }
+        if (state == DONE) {
+            return false;
+        }
+        state = BOUNDARY;
+        if (!findDelimiter()) {
+            state = DONE;
+            return false;
+        }
+        // "--boundary--" closes the body
+        if (ensure(2) && buf[pos] == '-' && buf[pos + 1] == '-') {
+            state = DONE;
+            return false;
+        }
+        readLine(); // rest of the boundary line
+        state = HEADERS;
+        long[] range = null;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Range")) {
+                range = parseContentRange(line.substring(colon + 1));
+            }
+        }
+        if (range == null) {
+            throw new IOException("multipart part without Content-Range");
+        }
+        first = range[0];
+        last = range[1];
+        remaining = last - first + 1;
+        state = BODY;
+        return true;
+    }
+
+    long getFirst() {
+        return first;
+    }
+
+    long getLast() {
+        return last;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (state != BODY || remaining <= 0) {
+            return -1;
+        }
+        len = (int) Math.min(len, remaining);
+        int n;
+        if (pos < lim) {
+            n = Math.min(len, lim - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+        } else {
+            n = in.read(b, off, len); // straight into the caller's buffer
+            if (n == -1) {
+                throw new IOException("multipart body ended inside a part");
+            }
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    /**
+     * advances past the next delimiter
+     * 
+     * @return false if the stream ended first
+     */
+    private boolean findDelimiter() throws IOException {
+        while (true) {
+            if (!ensure(delimiter.length)) {
+                return false;
+            }
+            int limit = lim - delimiter.length;
+            for (int i = pos; i <= limit; i++) {
+                if (matchesAt(i)) {
+                    pos = i + delimiter.length;
+                    return true;
+                }
+            }
+            pos = limit + 1; // keep a possible partial match for the next fill
+        }
+    }
+
+    private boolean matchesAt(int i) {
+        for (int j = 0; j < delimiter.length; j++) {
+            if (buf[i + j] != delimiter[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a header line without its CRLF, decoded as latin-1
+     */
+    private String readLine() throws IOException {
+        int start = pos;
+        int i = pos;
+        while (true) {
+            if (i >= lim) {
+                int scanned = i - start;
+                if (scanned >= MAX_HEADER_LINE) {
+                    throw new IOException("multipart header line too long");
+                }
+                if (!ensure(scanned + 1)) {
+                    throw new IOException("multipart body ended inside the headers");
+                }
+                start = pos;
+                i = pos + scanned;
+            }
+            if (buf[i] == '\n') {
+                int end = (i > start && buf[i - 1] == '\r') ? i - 1 : i;
+                String line = new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+                pos = i + 1;
+                return line;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * makes sure at least n unread bytes sit in the lookahead
+     * 
+     * @return false if the stream ended first
+     */
+    private boolean ensure(int n) throws IOException {
+        if (lim - pos >= n) {
+            return true;
+        }
+        if (n > buf.length) {
+            return false;
+        }
+        System.arraycopy(buf, pos, buf, 0, lim - pos);
+        lim -= pos;
+        pos = 0;
+        while (lim < n) {
+            int r = in.read(buf, lim, buf.length - lim);
+            if (r == -1) {
+                return false;
+            }
+            lim += r;
+        }
+        return true;
+    }
+}
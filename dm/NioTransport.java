@@ -0,0 +1,587 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An HTTP/1.1 client over non-blocking SocketChannels, for plain http urls
+ * (-Didcdm.transport=nio). https still goes through the default transport.
+ *
+ * A single selector thread watches every connection. A getter reads from its
+ * channel until it runs dry, then parks until the selector says there is more,
+ * so waiting for the network costs no thread of its own. With
+ * -Didcdm.virtualThreads the parked getters are virtual threads, and a few
+ * carrier threads drive hundreds of range streams.
+ *
+ * The body is a ReadableByteChannel, so getters read straight into their
+ * pooled chunk buffers. Connections keep their header buffer and go back to a
+ * per host idle list once their body was read, -Didcdm.rcvBuf sets their
+ * SO_RCVBUF.
+ */
+class NioTransport implements Transport {
+
+    private static final int HEAD_BUFFER = 16 * 1024; // most bytes of response headers
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_IDLE = 64; // idle connections kept per host
+    private static final long SKIP_ON_CLOSE = 64 * 1024; // a body this short is read out to keep the connection
+
+    private final Selector selector;
+    private final Queue<Conn> pending = new ConcurrentLinkedQueue<Conn>(); // waiting to be (re)registered
+    private final Map<String, ConcurrentLinkedDeque<Conn>> idle = new ConcurrentHashMap<String, ConcurrentLinkedDeque<Conn>>();
+
+    NioTransport() {
+        try {
+            selector = Selector.open();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("cannot open a selector", ioe);
+        }
+        Thread loop = new Thread(this::selectLoop, "idcdm-nio");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    @Override
+    public HttpPool.Response open(String method, URL url, String range, String ifRange) throws IOException {
+        for (int redirects = 0;; redirects++) {
+            Response resp = send(method, url, range, ifRange);
+            int status = resp.getStatus();
+            String location = resp.getHeader("Location");
+            if (status / 100 != 3 || status == 304 || location == null || redirects == MAX_REDIRECTS) {
+                return resp;
+            }
+            resp.close();
+            url = new URL(url, location);
+            if (!url.getProtocol().equals("http")) {
+                return HttpPool.SHARED.open(method, url, range, ifRange);
+            }
+        }
+    }
+
+    /**
+     * sends a request over an idle connection to the host, or a new one. a
+     * reused connection the server already closed is replaced once
+     */
+    private Response send(String method, URL url, String range, String ifRange) throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        String key = host + ":" + port;
+        Conn conn = takeIdle(key);
+        while (true) {
+            boolean reused = conn != null;
+            if (!reused) {
+                conn = connect(key, host, port);
+            }
+            try {
+                conn.writeRequest(method, url, range, ifRange);
+                return conn.readResponse(method);
+            } catch (IOException ioe) {
+                conn.close();
+                if (!reused || ioe instanceof InterruptedIOException) {
+                    throw ioe;
+                }
+                conn = null;
+            }
+        }
+    }
+
+    private Conn takeIdle(String key) {
+        ConcurrentLinkedDeque<Conn> list = idle.get(key);
+        Conn conn;
+        while (list != null && (conn = list.pollFirst()) != null) {
+            if (conn.ch.isOpen()) {
+                return conn;
+            }
+        }
+        return null;
+    }
+
+    private void putIdle(Conn conn) {
+        ConcurrentLinkedDeque<Conn> list = idle.computeIfAbsent(conn.key, k -> new ConcurrentLinkedDeque<Conn>());
+        if (list.size() >= MAX_IDLE) {
+            conn.close();
+            return;
+        }
+        list.addFirst(conn);
+    }
+
+    private Conn connect(String key, String host, int port) throws IOException {
+        SocketChannel ch = SocketChannel.open();
+        Conn conn = new Conn(key, host, port, ch);
+        try {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (Settings.RCV_BUF > 0) {
+                ch.setOption(StandardSocketOptions.SO_RCVBUF, Settings.RCV_BUF); // before connect, so the window scales
+            }
+            if (!ch.connect(new InetSocketAddress(host, port))) {
+                while (!ch.finishConnect()) {
+                    conn.await(SelectionKey.OP_CONNECT, HTTPRangeGetter.CONNECT_TIMEOUT);
+                }
+            }
+            return conn;
+        } catch (IOException ioe) {
+            conn.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * registers interest for waiting connections and wakes those whose
+     * channel is ready
+     */
+    private void selectLoop() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException ioe) {
+                System.err.println("nio selector failed: " + ioe.getMessage());
+                return;
+            }
+            Conn conn;
+            while ((conn = pending.poll()) != null) {
+                try {
+                    SelectionKey k = conn.ch.keyFor(selector);
+                    if (k == null) {
+                        conn.ch.register(selector, conn.interest, conn);
+                    } else {
+                        k.interestOps(conn.interest);
+                    }
+                } catch (ClosedChannelException | CancelledKeyException e) {
+                    conn.wake(); // its owner finds out on the next read
+                }
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey k = it.next();
+                it.remove();
+                if (k.isValid()) {
+                    k.interestOps(0);
+                }
+                ((Conn) k.attachment()).wake();
+            }
+        }
+    }
+
+    /**
+     * a connection to a host. used by one request at a time
+     */
+    private class Conn {
+        final String key; // host:port, for the idle lists
+        final String host;
+        final int port;
+        final SocketChannel ch;
+        final ByteBuffer in = ByteBuffer.allocate(HEAD_BUFFER); // read ahead, flipped: position..limit is unread
+        volatile int interest; // ops to wait for
+        volatile boolean ready;
+        volatile Thread waiter;
+
+        Conn(String key, String host, int port, SocketChannel ch) {
+            this.key = key;
+            this.host = host;
+            this.port = port;
+            this.ch = ch;
+            in.flip();
+        }
+
+        /**
+         * parks until the selector sees the channel ready for ops
+         *
+         * @throws SocketTimeoutException if it is not ready within timeoutMs
+         */
+        void await(int ops, long timeoutMs) throws IOException {
+            interest = ops;
+            ready = false;
+            waiter = Thread.currentThread();
+            pending.add(this);
+            selector.wakeup();
+            long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+            try {
+                while (!ready) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        throw new SocketTimeoutException(ops == SelectionKey.OP_CONNECT ? "connect timed out"
+                                : "read timed out");
+                    }
+                    LockSupport.parkNanos(this, left);
+                    if (Thread.interrupted()) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while waiting for " + host);
+                    }
+                }
+            } finally {
+                waiter = null;
+            }
+        }
+
+        void wake() {
+            ready = true;
+            Thread t = waiter;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+
+        /**
+         * reads at least one byte into dst, waiting for the network as needed
+         *
+         * @return bytes read, or -1 at the end of the stream
+         */
+        int read(ByteBuffer dst) throws IOException {
+            int n;
+            while ((n = ch.read(dst)) == 0 && dst.hasRemaining()) {
+                await(SelectionKey.OP_READ, HTTPRangeGetter.READ_TIMEOUT);
+            }
+            return n;
+        }
+
+        /**
+         * reads more of the response into the read ahead buffer
+         */
+        void fill() throws IOException {
+            in.compact();
+            try {
+                if (!in.hasRemaining()) {
+                    throw new IOException("response headers from " + host + " are too long");
+                }
+                if (read(in) < 0) {
+                    throw new EOFException("connection to " + host + " closed mid response");
+                }
+            } finally {
+                in.flip();
+            }
+        }
+
+        /**
+         * @return the next line of the response, without its line end
+         */
+        String readLine() throws IOException {
+            while (true) {
+                for (int i = in.position(); i < in.limit(); i++) {
+                    if (in.get(i) == '\n') {
+                        int end = i > in.position() && in.get(i - 1) == '\r' ? i - 1 : i;
+                        String line = new String(in.array(), in.arrayOffset() + in.position(), end - in.position(),
+                                StandardCharsets.ISO_8859_1);
+                        in.position(i + 1);
+                        return line;
+                    }
+                }
+                fill();
+            }
+        }
+
+        void writeRequest(String method, URL url, String range, String ifRange) throws IOException {
+            String path = url.getFile().isEmpty() ? "/" : url.getFile();
+            StringBuilder req = new StringBuilder();
+            req.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            req.append("Host: ").append(host);
+            if (port != url.getDefaultPort()) {
+                req.append(':').append(port);
+            }
+            req.append("\r\nUser-Agent: IdcDm\r\nAccept-Encoding: identity\r\n");
+            if (range != null) {
+                req.append("Range: ").append(range).append("\r\n");
+                if (ifRange != null) {
+                    req.append("If-Range: ").append(ifRange).append("\r\n");
+                }
+            }
+            req.append("\r\n");
+            ByteBuffer out = ByteBuffer.wrap(req.toString().getBytes(StandardCharsets.ISO_8859_1));
+            while (out.hasRemaining()) {
+                if (ch.write(out) == 0) {
+                    await(SelectionKey.OP_WRITE, HTTPRangeGetter.READ_TIMEOUT);
+                }
+            }
+        }
+
+        /**
+         * reads the status line and headers. skips 1xx responses
+         */
+        Response readResponse(String method) throws IOException {
+            while (true) {
+                String statusLine = readLine();
+                String[] parts = statusLine.split(" ", 3);
+                if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                    throw new IOException("bad status line from " + host + ": " + statusLine);
+                }
+                int status;
+                try {
+                    status = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException nfe) {
+                    throw new IOException("bad status line from " + host + ": " + statusLine);
+                }
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while (!(line = readLine()).isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.putIfAbsent(line.substring(0, colon).trim().toLowerCase(),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                if (status / 100 == 1) {
+                    continue;
+                }
+                String connection = headers.get("connection");
+                boolean keepAlive = parts[0].equals("HTTP/1.0") ? "keep-alive".equalsIgnoreCase(connection)
+                        : !"close".equalsIgnoreCase(connection);
+                long length;
+                boolean chunked = false;
+                if (method.equals("HEAD") || status == 204 || status == 304) {
+                    length = 0;
+                } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                    length = -1;
+                    chunked = true;
+                } else {
+                    length = parseLength(headers.get("content-length"));
+                    if (length < 0) {
+                        keepAlive = false; // the body ends when the server closes
+                    }
+                }
+                return new Response(status, headers, this, new Body(this, length, chunked), keepAlive);
+            }
+        }
+
+        void close() {
+            try {
+                ch.close();
+            } catch (IOException ioe) {
+                // nothing to do, it is going away anyway
+            }
+        }
+    }
+
+    private static long parseLength(String v) {
+        try {
+            return v == null ? -1 : Long.parseLong(v.trim());
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * a response body, plain, chunked or read until the server closes
+     */
+    private static class Body extends InputStream implements ReadableByteChannel {
+        private final Conn conn;
+        private final boolean chunked;
+        private long left; // bytes left in the body or the current chunk, -1 if unknown
+        private boolean started; // a chunk was read, so its line end comes before the next size
+        private boolean eof;
+        private boolean open = true;
+        private ByteBuffer skipBuf;
+
+        Body(Conn conn, long length, boolean chunked) {
+            this.conn = conn;
+            this.chunked = chunked;
+            this.left = chunked ? 0 : length;
+            this.eof = !chunked && length == 0;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (eof) {
+                return -1;
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            if (chunked && left == 0) {
+                nextChunk();
+                if (eof) {
+                    return -1;
+                }
+            }
+            int want = left < 0 ? dst.remaining() : (int) Math.min(dst.remaining(), left);
+            int n;
+            ByteBuffer in = conn.in;
+            if (in.hasRemaining()) {
+                n = Math.min(want, in.remaining());
+                ByteBuffer src = in.duplicate();
+                src.limit(src.position() + n);
+                dst.put(src);
+                in.position(in.position() + n);
+            } else {
+                int limit = dst.limit();
+                dst.limit(dst.position() + want);
+                try {
+                    n = conn.read(dst);
+                } finally {
+                    dst.limit(limit);
+                }
+                if (n < 0) {
+                    if (left >= 0) {
+                        throw new EOFException("connection to " + conn.host + " closed mid body");
+                    }
+                    eof = true;
+                    return -1;
+                }
+            }
+            if (left > 0) {
+                left -= n;
+                if (left == 0 && !chunked) {
+                    eof = true;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * reads the size line of the next chunk, and the trailers after the
+         * last one
+         */
+        private void nextChunk() throws IOException {
+            if (started) {
+                conn.readLine(); // the line end after the previous chunk
+            }
+            started = true;
+            String line = conn.readLine();
+            int semi = line.indexOf(';');
+            try {
+                left = Long.parseLong((semi < 0 ? line : line.substring(0, semi)).trim(), 16);
+            } catch (NumberFormatException nfe) {
+                throw new IOException("bad chunk size from " + conn.host + ": " + line);
+            }
+            if (left == 0) {
+                while (!conn.readLine().isEmpty()) {
+                    // trailers, not needed
+                }
+                eof = true;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            if (skipBuf == null) {
+                skipBuf = ByteBuffer.allocate(8192);
+            }
+            skipBuf.clear().limit((int) Math.min(n, skipBuf.capacity()));
+            return Math.max(0, read(skipBuf));
+        }
+
+        @Override
+        public int available() {
+            int buffered = conn.in.remaining();
+            return eof ? 0 : left < 0 || chunked ? buffered : (int) Math.min(buffered, left);
+        }
+
+        /**
+         * reads out a short rest of the body, so the connection can be reused
+         *
+         * @return true if the whole body was read
+         */
+        boolean finish() {
+            try {
+                if (!eof && !chunked && left > 0 && left <= SKIP_ON_CLOSE) {
+                    while (!eof && skip(left) > 0) {
+                        // drop it
+                    }
+                }
+            } catch (IOException ioe) {
+                return false;
+            }
+            return eof;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * a response read over a {@link Conn}. closing it puts the connection back
+     * on the idle list if the body was read to its end
+     */
+    private class Response extends HttpPool.Response {
+        private final Map<String, String> headers; // lower case names
+        private final Conn conn;
+        private final Body body;
+        private final boolean keepAlive;
+        private boolean done;
+
+        Response(int status, Map<String, String> headers, Conn conn, Body body, boolean keepAlive) {
+            super(status);
+            this.headers = headers;
+            this.conn = conn;
+            this.body = body;
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        @Override
+        InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        synchronized void close() {
+            if (done) {
+                return;
+            }
+            done = true;
+            boolean drained = body.finish();
+            body.close();
+            if (drained && keepAlive) {
+                putIdle(conn);
+            } else {
+                conn.close();
+            }
+        }
+
+        @Override
+        synchronized void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            body.close();
+            conn.close();
+        }
+    }
+}
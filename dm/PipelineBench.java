@@ -0,0 +1,287 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.Executors;
+
+/**
+ * Benchmarks the chunk pipeline: {@link HTTPRangeGetter} -> out queue ->
+ * {@link FileWriter}, against an in-process HTTP range server serving a
+ * synthetic file.
+ *
+ * Every parameter combination runs in a forked JVM, since the pipeline's
+ * sizes are read once from system properties. Each fork runs warmup
+ * iterations before the measured ones, and reports throughput, the p50/p99
+ * time a chunk spends between the queue and the disk, and bytes allocated
+ * per GB downloaded.
+ *
+ * usage: java PipelineBench [-chunk 4k,64k] [-queue 256,1024] [-conns 1,4,16]
+ * [-size 64m,1g] [-warmup 1] [-iterations 3]
+ *
+ * Other -Didcdm.* properties are passed on to the forks, e.g.
+ * -Didcdm.writeMode=mmap
+ */
+public class PipelineBench {
+
+    static final int PATTERN_SIZE = 1 << 20; // the synthetic file repeats this pattern
+    private static final byte[] PATTERN = new byte[PATTERN_SIZE];
+    static {
+        new Random(42).nextBytes(PATTERN);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("-fork")) {
+            fork(Long.parseLong(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                    Integer.parseInt(args[4]));
+            return;
+        }
+        Map<String, String> opts = new HashMap<String, String>();
+        opts.put("-chunk", "4k,64k");
+        opts.put("-queue", "1024");
+        opts.put("-conns", "1,4,16");
+        opts.put("-size", "256m");
+        opts.put("-warmup", "1");
+        opts.put("-iterations", "3");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!opts.containsKey(args[i])) {
+                System.err.println("unknown option " + args[i]);
+                System.exit(1);
+            }
+            opts.put(args[i], args[i + 1]);
+        }
+
+        System.out.printf("%8s %8s %6s %8s %10s %10s %10s %14s%n", "chunk", "queue", "conns", "size", "MB/s",
+                "p50(us)", "p99(us)", "alloc(MB/GB)");
+        for (String size : opts.get("-size").split(",")) {
+            for (String chunk : opts.get("-chunk").split(",")) {
+                for (String queue : opts.get("-queue").split(",")) {
+                    for (String conns : opts.get("-conns").split(",")) {
+                        double[] r = runFork(chunk, queue, parseSize(size), Integer.parseInt(conns),
+                                Integer.parseInt(opts.get("-warmup")), Integer.parseInt(opts.get("-iterations")));
+                        if (r == null) {
+                            System.out.printf("%8s %8s %6s %8s %10s%n", chunk, queue, conns, size, "failed");
+                        } else {
+                            System.out.printf("%8s %8s %6s %8s %10.1f %10.1f %10.1f %14.2f%n", chunk, queue, conns,
+                                    size, r[0], r[1], r[2], r[3]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * runs one parameter combination in a new JVM
+     * 
+     * @return mean MB/s, p50, p99 and MB allocated per GB, or null on failure
+     */
+    private static double[] runFork(String chunk, String queue, long size, int conns, int warmup, int iterations)
+            throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("idcdm.")) {
+                cmd.add("-D" + key + "=" + System.getProperty(key));
+            }
+        }
+        cmd.add("-Didcdm.chunkSize=" + chunk);
+        cmd.add("-Didcdm.queueCapacity=" + queue);
+        cmd.add("PipelineBench");
+        cmd.add("-fork");
+        cmd.add(Long.toString(size));
+        cmd.add(Integer.toString(conns));
+        cmd.add(Integer.toString(warmup));
+        cmd.add(Integer.toString(iterations));
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        double[] sum = new double[4];
+        int n = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("RESULT ")) {
+                    String[] f = line.split(" ");
+                    for (int i = 0; i < 4; i++) {
+                        sum[i] += Double.parseDouble(f[i + 1]);
+                    }
+                    n++;
+                } else if (line.startsWith("FAILED")) {
+                    System.err.println(line);
+                }
+            }
+        }
+        p.waitFor();
+        if (n == 0) {
+            return null;
+        }
+        for (int i = 0; i < 4; i++) {
+            sum[i] /= n;
+        }
+        return sum;
+    }
+
+    /**
+     * the forked side. serves the synthetic file and downloads it
+     */
+    private static void fork(long size, int conns, int warmup, int iterations) throws Exception {
+        HttpServer server = startServer(size);
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/bench-" + ProcessHandle.current().pid()
+                + ".bin";
+        AllocationSampler sampler = new AllocationSampler();
+        try {
+            for (int i = 0; i < warmup + iterations; i++) {
+                long alloc0 = sampler.total();
+                long t0 = System.nanoTime();
+                Download session = new Download(url, conns);
+                boolean ok = IdcDm.runSession(session);
+                long t1 = System.nanoTime();
+                long alloc1 = sampler.total();
+                File target = new File(session.getFilename());
+                if (!ok || !verify(target, size)) {
+                    System.out.println("FAILED iteration " + i);
+                } else if (i >= warmup) {
+                    double mbps = size / 1048576.0 / ((t1 - t0) / 1e9);
+                    Histogram h = session.getChunkLatency();
+                    double perGB = (alloc1 - alloc0) / 1048576.0 / (size / 1073741824.0);
+                    System.out.printf("RESULT %.3f %.3f %.3f %.3f%n", mbps, h.percentile(0.5) / 1e3,
+                            h.percentile(0.99) / 1e3, perGB);
+                }
+                target.delete();
+            }
+        } finally {
+            sampler.stop();
+            server.stop(0);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * serves size bytes of the pattern at any path, honoring a single range
+     */
+    private static HttpServer startServer(long size) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        }));
+        server.createContext("/", ex -> {
+            long first = 0, last = size - 1;
+            String range = ex.getRequestHeaders().getFirst("Range");
+            try {
+                if (range != null) {
+                    String spec = range.substring("bytes=".length()).split(",")[0].trim();
+                    int dash = spec.indexOf('-');
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash + 1 < spec.length()) {
+                        last = Math.min(last, Long.parseLong(spec.substring(dash + 1)));
+                    }
+                    ex.getResponseHeaders().add("Content-Range", "bytes " + first + "-" + last + "/" + size);
+                    ex.sendResponseHeaders(206, last - first + 1);
+                } else {
+                    ex.getResponseHeaders().add("Accept-Ranges", "bytes");
+                    ex.sendResponseHeaders(200, size);
+                }
+                OutputStream out = ex.getResponseBody();
+                long at = first;
+                while (at <= last) {
+                    int off = (int) (at % PATTERN_SIZE);
+                    int n = (int) Math.min(PATTERN_SIZE - off, last - at + 1);
+                    out.write(PATTERN, off, n);
+                    at += n;
+                }
+            } catch (IOException ioe) {
+                // the client hung up, e.g. after reading the headers only
+            } finally {
+                ex.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return true if the file holds exactly size bytes of the pattern
+     */
+    private static boolean verify(File f, long size) throws IOException {
+        if (f.length() != size) {
+            return false;
+        }
+        byte[] buf = new byte[PATTERN_SIZE];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+            long at = 0;
+            while (at < size) {
+                int n = (int) Math.min(PATTERN_SIZE, size - at);
+                int read = in.readNBytes(buf, 0, n);
+                if (read != n || !Arrays.equals(buf, 0, n, PATTERN, 0, n)) {
+                    return false;
+                }
+                at += n;
+            }
+        }
+        return true;
+    }
+
+    static long parseSize(String s) {
+        System.setProperty("idcdm.bench.size", s);
+        return Settings.getSize("idcdm.bench.size", 0);
+    }
+
+    /**
+     * sums the bytes allocated by every thread. threads come and go, so it
+     * polls and keeps the last value seen per thread. allocations of a thread
+     * in the last few ms of its life may be missed
+     */
+    private static class AllocationSampler implements Runnable {
+        private final com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        private final Map<Long, Long> seen = new HashMap<Long, Long>();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        AllocationSampler() {
+            mx.setThreadAllocatedMemoryEnabled(true);
+            thread = new Thread(this, "alloc-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                sample();
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized void sample() {
+            long[] ids = mx.getAllThreadIds();
+            long[] bytes = mx.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] >= 0) {
+                    seen.put(ids[i], bytes[i]);
+                }
+            }
+        }
+
+        synchronized long total() {
+            sample();
+            long t = 0;
+            for (long b : seen.values()) {
+                t += b;
+            }
+            return t;
+        }
+
+        void stop() {
+            running = false;
+            thread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tracks which bytes of the target file are already on disk.
+ *
+ * Holds a sorted set of disjoint completed intervals, merged as they grow.
+ * Memory is proportional to the number of holes rather than the file size,
+ * and the granularity is a single byte.
+ *
+ * Every interval also carries the CRC32C of its bytes, combined from the
+ * CRCs of the extents it was built from, so a complete download ends up with
+ * the CRC of the whole file without reading it back.
+ */
+class ProgressMap implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+    private final long contentLength;
+    private final TreeMap<Long, long[]> done; // first byte -> {last byte, CRC32C} of every completed interval
+    private long doneBytes;
+
+    ProgressMap(long contentLength) {
+        this.contentLength = contentLength;
+        this.done = new TreeMap<Long, long[]>();
+        this.doneBytes = 0;
+    }
+
+    /**
+     * marks len bytes starting at offset as written, with an unknown CRC.
+     * overlaps are fine
+     */
+    synchronized void markDone(long offset, long len) {
+        markDone(offset, len, Crc32c.UNKNOWN);
+    }
+
+    /**
+     * marks len bytes starting at offset as written. overlaps are fine, but
+     * an interval built from partly overlapping extents loses its CRC
+     * 
+     * @param crc CRC32C of the bytes, or {@link Crc32c#UNKNOWN}
+     */
+    synchronized void markDone(long offset, long len, long crc) {
+        if (len <= 0) {
+            return;
+        }
+        long first = offset;
+        long last = offset + len - 1;
+        // merge with the interval starting at or before us, if it touches
+        Map.Entry<Long, long[]> before = done.floorEntry(first);
+        if (before != null && before.getValue()[0] + 1 >= first) {
+            long[] b = before.getValue();
+            if (b[0] >= last) {
+                return; // nothing new
+            }
+            crc = b[0] + 1 == first ? Crc32c.combine(b[1], crc, len) : Crc32c.UNKNOWN;
+            first = before.getKey();
+            doneBytes -= b[0] - first + 1;
+            done.remove(first);
+        }
+        // swallow every interval that starts inside or right after us
+        Map.Entry<Long, long[]> after = done.ceilingEntry(first);
+        while (after != null && after.getKey() <= last + 1) {
+            long[] a = after.getValue();
+            if (after.getKey() == last + 1) {
+                crc = Crc32c.combine(crc, a[1], a[0] - after.getKey() + 1);
+            } else {
+                crc = Crc32c.UNKNOWN;
+            }
+            last = Math.max(last, a[0]);
+            doneBytes -= a[0] - after.getKey() + 1;
+            done.remove(after.getKey());
+            after = done.ceilingEntry(first);
+        }
+        done.put(first, new long[] { last, crc });
+        doneBytes += last - first + 1;
+    }
+
+    /**
+     * @return true if every byte in [offset, offset + len) is written
+     */
+    synchronized boolean isDone(long offset, long len) {
+        Map.Entry<Long, long[]> e = done.floorEntry(offset);
+        return e != null && e.getValue()[0] >= offset + len - 1;
+    }
+
+    /**
+     * @return a range for every hole, in file order
+     */
+    synchronized List<Range> missing() {
+        return missing(0, contentLength);
+    }
+
+    /**
+     * @return a range for every hole in [from, to), in file order
+     */
+    synchronized List<Range> missing(long from, long to) {
+        List<Range> holes = new ArrayList<Range>();
+        long next = from; // first byte not known to be written
+        Long start = done.floorKey(from);
+        for (Map.Entry<Long, long[]> e : done.tailMap(start != null ? start : from).entrySet()) {
+            if (e.getKey() >= to) {
+                break;
+            }
+            if (e.getKey() > next) {
+                holes.add(new Range(next, e.getKey() - 1, next));
+            }
+            next = Math.max(next, e.getValue()[0] + 1);
+        }
+        if (next < to) {
+            holes.add(new Range(next, to - 1, next));
+        }
+        return holes;
+    }
+
+    synchronized long getDoneBytes() {
+        return doneBytes;
+    }
+
+    /**
+     * @return end of the written prefix of the file, the first byte that is
+     *         not known to be on disk
+     */
+    synchronized long getPrefixEnd() {
+        long[] head = done.get(0L);
+        return head == null ? 0 : head[0] + 1;
+    }
+
+    /**
+     * @return CRC32C of the whole file, or {@link Crc32c#UNKNOWN} if it is not
+     *         complete or was built from overlapping extents
+     */
+    synchronized long getCrc() {
+        long[] head = done.get(0L);
+        if (head == null || head[0] != contentLength - 1) {
+            return Crc32c.UNKNOWN;
+        }
+        return head[1];
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return an independent copy, safe to serialize while writes go on
+     */
+    synchronized ProgressMap copy() {
+        ProgressMap c = new ProgressMap(contentLength);
+        for (Map.Entry<Long, long[]> e : done.entrySet()) {
+            c.done.put(e.getKey(), e.getValue().clone());
+        }
+        c.doneBytes = doneBytes;
+        return c;
+    }
+}
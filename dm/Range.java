@@ -1,68 +1,99 @@
 import java.io.Serializable;
-import static java.lang.Math.toIntExact;
 
 /**
- * Describes a simple range, with a start, an end, and a length
+ * Describes a simple range, with a start, an end, and a length.
+ *
+ * A range is owned by a single {@link HTTPRangeGetter}, but its end may be
+ * moved back by {@link Download} when an idle getter steals its tail, so
+ * everything that touches pos/end is synchronized.
  */
 class Range implements Serializable {
+	private static final long serialVersionUID = 1L;
 	final private long start; // first byte
 	private long end; // last byte
-	private long pos; //
-	final private long len;
+	private long pos; // next byte to be fetched
 
 	Range(long start, long end, long pos) {
 		this.start = start;
 		this.end = end;
 		this.pos = pos;
-		this.len = end - start + 1;
 	}
 
-	public long getPOS() {
+	public synchronized long getPOS() {
 		return pos;
 	}
 
-	public long getRemaining() {
+	public synchronized long getRemaining() {
 		return (end - pos) + 1;
 	}
 
-	public long getLength() {
-		return len;
+	public synchronized long getLength() {
+		return end - start + 1;
 	}
 
-	public void pushPOS(int delta) {
+	public synchronized void pushPOS(int delta) {
 		this.pos += delta;
 	}
 
-	public boolean isComplete() {
-		if (pos > end) {
-//			System.out.println("## pos: " + pos + " - end: " + end);
-		} else if (pos == end) {
-//			System.out.println("$$ pos: " + pos + " - end: " + end);
-		}
-		return pos >= end;
+	/**
+	 * advances pos by the bytes just read, without crossing end. the end might
+	 * have been moved back while the read was in flight
+	 *
+	 * @param read number of bytes read from the stream
+	 * @return how many of these bytes still belong to this range
+	 */
+	public synchronized int claim(int read) {
+		int n = (int) Math.max(0, Math.min(read, end - pos + 1));
+		pos += n;
+		return n;
+	}
+
+	public synchronized boolean isComplete() {
+		return pos > end;
 	}
 
 	Long getStart() {
 		return start;
 	}
 
-	Long getEnd() {
+	synchronized Long getEnd() {
 		return end;
 	}
 
-	String getStringParams() {
-		return start + "-" + end;
+	/**
+	 * @return the remaining bytes of this range as a http range spec
+	 */
+	synchronized String getStringParams() {
+		return pos + "-" + end;
 	}
 
-	public void setLast(long end) {
+	public synchronized void setLast(long end) {
 		this.end = end;
 	}
 
-	public String toString() {
+	/**
+	 * cuts this range in half. this range keeps the first half, the second half
+	 * is returned as a new range
+	 *
+	 * @param minSize the smallest half worth splitting off
+	 * @return the tail of this range, or null if it is too small to split
+	 */
+	synchronized Range split(long minSize) {
+		long remaining = getRemaining();
+		if (remaining < 2 * minSize) {
+			return null;
+		}
+		long mid = pos + remaining / 2;
+		Range tail = new Range(mid, end, mid);
+		setLast(mid - 1);
+		return tail;
+	}
+
+	public synchronized String toString() {
 		String s = "start: " + this.start;
 		s += "\n pos: " + this.pos;
 		s += "\n end: " + this.end;
-		s += "\n len: " + this.len;
+		s += "\n len: " + getLength();
 		return s;
 	}
 
@@ -0,0 +1,262 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A local cache of file segments, shared by every download on the machine.
+ * Enabled with -Didcdm.cacheDir.
+ *
+ * Downloads are cut into aligned segments of -Didcdm.cacheSegment bytes. An
+ * index maps (URL, ETag, segment range) to the SHA-256 of the segment, and
+ * each distinct segment is stored once, as objects/HASH, however many
+ * downloads share it. Before the first request a download copies every
+ * segment it finds straight into the target file with FileChannel.transferTo,
+ * and only fetches the rest. Once a download succeeds its segments are
+ * added. Only responses with a strong ETag are cached, since without one
+ * there is no telling whether the content changed.
+ *
+ * The cache is bounded by -Didcdm.cacheBytes, evicting the least recently
+ * used segments. The index is read and written under a file lock, so
+ * several processes may share a cache directory.
+ */
+class SegmentCache {
+
+    static final SegmentCache SHARED = Settings.CACHE_DIR == null ? null
+            : new SegmentCache(new File(Settings.CACHE_DIR), Settings.CACHE_SEGMENT, Settings.CACHE_BYTES);
+
+    private final File dir;
+    private final File objects;
+    private final File indexFile;
+    private final File lockFile;
+    private final long segmentSize;
+    private final long maxBytes;
+
+    /**
+     * what the cache holds, persisted as the index file
+     */
+    static class Index implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        final HashMap<String, String> keys = new HashMap<String, String>(); // url etag range -> hash
+        final LinkedHashMap<String, long[]> objects = new LinkedHashMap<String, long[]>(16, 0.75f, true); // hash -> {size, crc}, least recently used first
+        long bytes; // total size of the objects
+    }
+
+    SegmentCache(File dir, long segmentSize, long maxBytes) {
+        this.dir = dir;
+        this.objects = new File(dir, "objects");
+        this.indexFile = new File(dir, "index");
+        this.lockFile = new File(dir, "lock");
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * copies every cached segment of a download into its target file, and
+     * marks them done
+     * 
+     * @return bytes copied from the cache
+     */
+    synchronized long fill(Download session) {
+        String etag = session.getEtag();
+        if (!cacheable(etag)) {
+            return 0;
+        }
+        long length = session.getContentLength();
+        long copied = 0;
+        try (FileChannel lockChannel = lockChannel()) {
+            FileLock lock = lockChannel.lock();
+            try (RandomAccessFile raf = new RandomAccessFile(session.getFilename(), "rw")) {
+                Index index = readIndex();
+                FileChannel target = raf.getChannel();
+                for (long start = 0; start < length; start += segmentSize) {
+                    long len = Math.min(segmentSize, length - start);
+                    String hash = index.keys.get(key(session, etag, start, len));
+                    long[] info = hash == null ? null : index.objects.get(hash); // also marks it recently used
+                    File object = hash == null ? null : objectFile(hash);
+                    if (info == null || info[0] != len || !object.isFile() || object.length() != len) {
+                        continue;
+                    }
+                    if (copied == 0) {
+                        raf.setLength(length);
+                    }
+                    try (FileChannel src = FileChannel.open(object.toPath(), StandardOpenOption.READ)) {
+                        long done = 0;
+                        while (done < len) {
+                            long n = src.transferTo(done, len - done, target.position(start + done));
+                            if (n <= 0) {
+                                break;
+                            }
+                            done += n;
+                        }
+                        if (done < len) {
+                            continue;
+                        }
+                    }
+                    session.getProgress().markDone(start, len, info[1]);
+                    copied += len;
+                }
+                if (copied > 0) {
+                    writeIndex(index); // recency
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException ioe) {
+            System.err.println("problem reading the segment cache: " + ioe.getMessage());
+        }
+        return copied;
+    }
+
+    /**
+     * adds the segments of a finished download, then evicts down to the size
+     * limit
+     */
+    synchronized void store(Download session) {
+        String etag = session.getEtag();
+        if (!cacheable(etag)) {
+            return;
+        }
+        long length = session.getContentLength();
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(segmentSize, length));
+        objects.mkdirs();
+        try (FileChannel lockChannel = lockChannel()) {
+            FileLock lock = lockChannel.lock();
+            try (FileChannel data = FileChannel.open(new File(session.getFilename()).toPath(), StandardOpenOption.READ)) {
+                Index index = readIndex();
+                for (long start = 0; start < length; start += segmentSize) {
+                    int len = (int) Math.min(segmentSize, length - start);
+                    String key = key(session, etag, start, len);
+                    String known = index.keys.get(key);
+                    if (known != null && index.objects.get(known) != null && objectFile(known).isFile()) {
+                        continue; // came from the cache, or stored by an earlier download
+                    }
+                    buf.clear().limit(len);
+                    while (buf.hasRemaining()) {
+                        if (data.read(buf, start + buf.position()) < 0) {
+                            throw new EOFException("the download is shorter than its length");
+                        }
+                    }
+                    buf.flip();
+                    sha.update(buf.duplicate());
+                    String hash = toHex(sha.digest());
+                    if (!index.objects.containsKey(hash) || !objectFile(hash).isFile()) {
+                        writeObject(hash, buf);
+                        if (index.objects.put(hash, new long[] { len, Crc32c.of(buf, len) }) == null) {
+                            index.bytes += len;
+                        }
+                    }
+                    index.keys.put(key, hash);
+                }
+                evict(index);
+                writeIndex(index);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException ioe) {
+            System.err.println("problem adding to the segment cache: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * drops the least recently used objects, and every key that points to
+     * them, until the cache fits its limit
+     */
+    private void evict(Index index) {
+        Iterator<Map.Entry<String, long[]>> it = index.objects.entrySet().iterator();
+        while (index.bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, long[]> e = it.next();
+            objectFile(e.getKey()).delete();
+            index.bytes -= e.getValue()[0];
+            it.remove();
+        }
+        index.keys.values().removeIf(hash -> !index.objects.containsKey(hash));
+    }
+
+    private static boolean cacheable(String etag) {
+        return etag != null && !etag.startsWith("W/");
+    }
+
+    private static String key(Download session, String etag, long start, long len) {
+        return session.getUrl() + " " + etag + " " + start + "-" + (start + len - 1);
+    }
+
+    private File objectFile(String hash) {
+        return new File(objects, hash);
+    }
+
+    private void writeObject(String hash, ByteBuffer buf) throws IOException {
+        File tmp = new File(objects, hash + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer b = buf.duplicate();
+            while (b.hasRemaining()) {
+                out.write(b);
+            }
+        }
+        Files.move(tmp.toPath(), objectFile(hash).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the file other processes using the cache lock on
+     */
+    private FileChannel lockChannel() throws IOException {
+        dir.mkdirs();
+        return FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return the index, or an empty one if there is none or it cannot be read
+     */
+    private Index readIndex() {
+        if (!indexFile.isFile()) {
+            return new Index();
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            return (Index) ois.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("segment cache index is unreadable, starting over: " + e.getMessage());
+            return new Index();
+        }
+    }
+
+    /**
+     * writes the index aside and renames it into place
+     */
+    private void writeIndex(Index index) throws IOException {
+        File tmp = new File(dir, "index.tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+                ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))) {
+            oos.writeObject(index);
+            oos.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String toHex(byte[] raw) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : raw) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+}
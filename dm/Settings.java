@@ -0,0 +1,118 @@
+/**
+ * Runtime knobs. Read once from system properties, so they can be tuned
+ * without touching the command line, e.g.
+ * 
+ * java -Didcdm.writers=4 -Didcdm.writeMode=mmap IdcDm URL 8
+ */
+final class Settings {
+
+    private Settings() {
+    }
+
+    /**
+     * reads a byte count such as 512k or 10m from a system property
+     */
+    static long getSize(String key, long def) {
+        String v = System.getProperty(key);
+        if (v == null || v.isEmpty()) {
+            return def;
+        }
+        v = v.trim().toLowerCase();
+        long unit = 1;
+        switch (v.charAt(v.length() - 1)) {
+        case 'k':
+            unit = 1L << 10;
+            break;
+        case 'm':
+            unit = 1L << 20;
+            break;
+        case 'g':
+            unit = 1L << 30;
+            break;
+        }
+        if (unit != 1) {
+            v = v.substring(0, v.length() - 1);
+        }
+        try {
+            return Long.parseLong(v) * unit;
+        } catch (NumberFormatException nfe) {
+            System.err.println("ignoring bad value for " + key + ": " + System.getProperty(key));
+            return def;
+        }
+    }
+
+    // number of threads draining the out queue into the target file
+    static final int WRITER_THREADS = Math.max(1, Integer.getInteger("idcdm.writers", 1));
+    // "channel" for positional FileChannel writes, "mmap" to copy into a mapped view of the file
+    static final String WRITE_MODE = System.getProperty("idcdm.writeMode", "channel");
+    // "sparse" to just set the file's length, "reserve" to allocate its blocks up front (fallocate, else "zero"),
+    // "zero" to zero-fill it front to back in the background
+    static final String PREALLOCATE = System.getProperty("idcdm.preallocate", "sparse");
+    // getters write their own chunks through the shared channel instead of queueing them for the writers
+    static final boolean DIRECT_WRITE = Boolean.getBoolean("idcdm.directWrite");
+    // bytes of queued chunks a writer holds to merge neighbours into sorted, larger writes. 0 writes each as it comes
+    static final long COALESCE_BYTES = Math.max(0, getSize("idcdm.coalesceBytes", 8L << 20));
+    // longest a held chunk waits before it is written anyway, in ms
+    static final long COALESCE_MS = Math.max(1, Long.getLong("idcdm.coalesceMs", 50));
+    // max bytes of chunk buffers per download, e.g. 64m
+    static final long POOL_BYTES = Math.max(1, getSize("idcdm.poolBytes", 64L << 20));
+    // allocate chunk buffers off heap
+    static final boolean DIRECT_BUFFERS = Boolean.getBoolean("idcdm.directBuffers");
+    // how often written extents are appended to the metadata journal and synced, in ms
+    static final long MTD_FLUSH_MS = Math.max(10, Long.getLong("idcdm.mtdFlushMs", 1000));
+    // fold the journal into a new snapshot after this many records
+    static final long MTD_COMPACT_RECORDS = Math.max(1, Long.getLong("idcdm.mtdCompactRecords", 1 << 16));
+    // downloads running at once in batch mode (URL-LIST-FILE)
+    static final int BATCH_DOWNLOADS = Math.max(1, Integer.getInteger("idcdm.batchDownloads", 4));
+    // max connections to a single host across all downloads, 0 for the global cap only
+    static final int PER_HOST_CONNECTIONS = Integer.getInteger("idcdm.perHostConnections", 0);
+    // bytes per second for each download, e.g. 2m. 0 for no limit
+    static final long RATE = getSize("idcdm.rate", 0);
+    // bytes per second for the whole process, shared by all downloads. 0 for no limit
+    static final long GLOBAL_RATE = getSize("idcdm.globalRate", 0);
+    // max small ranges fetched over one connection as multipart/byteranges
+    static final int MAX_RANGES_PER_REQUEST = Math.max(1, Integer.getInteger("idcdm.maxRangesPerRequest", 16));
+    // adapt the number of connections to the measured throughput
+    static final boolean ADAPTIVE = Boolean.getBoolean("idcdm.adaptive");
+    // most connections the adaptive controller opens for a single download
+    static final int ADAPTIVE_MAX = Math.max(1, Integer.getInteger("idcdm.adaptiveMax", 32));
+    // how often the adaptive controller measures, in ms
+    static final long ADAPTIVE_INTERVAL_MS = Math.max(50, Long.getLong("idcdm.adaptiveIntervalMs", 1000));
+    // smallest handoff from a getter to the writer, and where getters start
+    static final int CHUNK_SIZE = (int) Math.max(512, getSize("idcdm.chunkSize", 4096));
+    // largest handoff getters grow to on a fast link. set equal to chunkSize for fixed chunks
+    static final int MAX_CHUNK_SIZE = (int) Math.min(1 << 30, Math.max(CHUNK_SIZE, getSize("idcdm.maxChunkSize", 4L << 20)));
+    // chunks the out queue holds before getters block
+    static final int QUEUE_CAPACITY = Math.max(1, Integer.getInteger("idcdm.queueCapacity", 1024));
+    // what a getter does when the out queue is full: "park" with a growing back-off, or "spin"
+    static final String BACKPRESSURE = System.getProperty("idcdm.backpressure", "park");
+    // most chunks a writer takes from the out queue per wake-up
+    static final int WRITER_BATCH = Math.max(1, Integer.getInteger("idcdm.writerBatch", 64));
+    // run getters, writers and batch sessions on virtual threads (java 21+)
+    static final boolean VIRTUAL_THREADS = Boolean.getBoolean("idcdm.virtualThreads");
+    // how requests are sent: "url" for HttpURLConnection, "http2" or "nio" for NioTransport (plain http only)
+    static final String TRANSPORT = System.getProperty("idcdm.transport",
+            Boolean.getBoolean("idcdm.http2") ? "http2" : "url");
+    // send requests through java.net.http.HttpClient, multiplexing ranges over HTTP/2 where the server supports it
+    static final boolean HTTP2 = TRANSPORT.equals("http2");
+    // SO_RCVBUF of nio connections, e.g. 4m. 0 leaves it to the OS, which autotunes it
+    static final int RCV_BUF = (int) Math.min(Integer.MAX_VALUE, getSize("idcdm.rcvBuf", 0));
+    // write a JSON snapshot of every download's metrics to this file, every metrics interval
+    static final String METRICS_FILE = System.getProperty("idcdm.metricsFile");
+    // how often metrics are sampled and the snapshot written, in ms
+    static final long METRICS_INTERVAL_MS = Math.max(100, Long.getLong("idcdm.metricsIntervalMs", 1000));
+    // failed requests in a row a getter retries before giving up. progress resets the count
+    static final int RETRIES = Math.max(0, Integer.getInteger("idcdm.retries", 8));
+    // back-off before the first retry, in ms. doubles with every failure, with full jitter
+    static final long RETRY_BASE_MS = Math.max(1, Long.getLong("idcdm.retryBaseMs", 250));
+    // longest back-off between retries, in ms
+    static final long RETRY_MAX_MS = Math.max(RETRY_BASE_MS, Long.getLong("idcdm.retryMaxMs", 15000));
+    // digest to check the download against, crc32c:HEX or sha256:HEX. "none" turns checksumming off
+    static final String CHECKSUM = System.getProperty("idcdm.checksum");
+    // directory of the local segment cache, shared by downloads of the same content. unset for no cache
+    static final String CACHE_DIR = System.getProperty("idcdm.cacheDir");
+    // size of a cached segment
+    static final long CACHE_SEGMENT = Math.max(64 << 10, Math.min(1 << 30, getSize("idcdm.cacheSegment", 4L << 20)));
+    // most bytes the segment cache holds before evicting the least recently used segments
+    static final long CACHE_BYTES = getSize("idcdm.cacheBytes", 1L << 30);
+}
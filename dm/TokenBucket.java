@@ -0,0 +1,66 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the download rate. Shared by all getters of a {@link Download}, and
+ * optionally by the whole process through {@link #GLOBAL}.
+ *
+ * Instead of a refill thread, the bucket keeps a single timestamp: the time at
+ * which everything taken so far has been paid for. Taking n bytes moves it
+ * forward by n / rate with one CAS, and the caller sleeps until it is less
+ * than a burst window ahead of now. Refill is continuous, so the bucket never
+ * releases a second's worth of bytes at once. A rate of 0 means unlimited and
+ * costs a single volatile read.
+ */
+class TokenBucket {
+
+    static final long BURST_NANOS = 50_000_000L; // how far ahead of the clock takers may run
+    static final TokenBucket GLOBAL = new TokenBucket(Settings.GLOBAL_RATE); // shared by every download
+
+    private volatile long rate; // bytes per second, 0 for no limit
+    private final AtomicLong paidUntil; // System.nanoTime() up to which bytes were handed out
+
+    TokenBucket(long rate) {
+        this.rate = Math.max(0, rate);
+        this.paidUntil = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * takes n bytes worth of tokens, sleeping as long as needed
+     */
+    void take(long n) {
+        long r = rate;
+        if (r <= 0 || n <= 0) {
+            return;
+        }
+        long cost = n * 1_000_000_000L / r;
+        long now, until;
+        while (true) {
+            now = System.nanoTime();
+            long prev = paidUntil.get();
+            // idle time refills the bucket, but only up to one burst window
+            until = Math.max(prev, now - BURST_NANOS) + cost;
+            if (paidUntil.compareAndSet(prev, until)) {
+                break;
+            }
+        }
+        long wait = until - now - BURST_NANOS;
+        while (wait > 0) {
+            LockSupport.parkNanos(wait);
+            wait = until - System.nanoTime() - BURST_NANOS;
+        }
+    }
+
+    /**
+     * changes the rate. takes effect with the next take
+     * 
+     * @param rate bytes per second, 0 for no limit
+     */
+    void setRate(long rate) {
+        this.rate = Math.max(0, rate);
+    }
+
+    long getRate() {
+        return rate;
+    }
+}
@@ -0,0 +1,29 @@
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Sends a request and hands back the response once its headers arrived.
+ * {@link HttpPool} picks the implementation every getter and download goes
+ * through, see -Didcdm.transport.
+ */
+interface Transport {
+
+    /**
+     * sends a request and waits for the response headers
+     * 
+     * @param method GET or HEAD
+     * @param url    the resource
+     * @param range  value of the Range header, or null
+     */
+    default HttpPool.Response open(String method, URL url, String range) throws IOException {
+        return open(method, url, range, null);
+    }
+
+    /**
+     * like {@link #open(String, URL, String)}, with an If-Range header
+     * 
+     * @param ifRange value of the If-Range header, or null. sent only with a
+     *                range
+     */
+    HttpPool.Response open(String method, URL url, String range, String ifRange) throws IOException;
+}
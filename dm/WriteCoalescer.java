@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * Holds chunks back from the disk for a moment, so chunks from different
+ * getters that touch each other go out as one large write.
+ *
+ * Chunks are kept sorted by offset. Once they hold more than a ceiling of
+ * bytes, or the oldest has waited longer than a latency bound, they are
+ * flushed in offset order, each run of contiguous chunks as one gathering
+ * write. Writer threads share it, a flush keeps the others from adding
+ * until it is done.
+ */
+class WriteCoalescer {
+
+    static final int MAX_RUN = 1024; // most buffers in one gathering write, the usual IOV_MAX
+
+    private final TreeMap<Long, Chunk> pending = new TreeMap<Long, Chunk>(); // by offset
+    private final long maxBytes; // flush once this much is held
+    private final long maxDelay; // ns a chunk may wait
+    private long bytes; // held now
+    private long since; // System.nanoTime() when the oldest held chunk came in
+    private final Chunk[] run = new Chunk[MAX_RUN];
+
+    WriteCoalescer(long maxBytes, long maxDelayMs) {
+        this.maxBytes = maxBytes;
+        this.maxDelay = maxDelayMs * 1_000_000L;
+    }
+
+    synchronized void add(Chunk ck) {
+        if (pending.isEmpty()) {
+            since = System.nanoTime();
+        }
+        pending.put(ck.getOffset(), ck);
+        bytes += ck.getSize_in_bytes();
+    }
+
+    synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * @return true if the held chunks should be written now
+     */
+    synchronized boolean isDue() {
+        return !pending.isEmpty() && (bytes >= maxBytes || System.nanoTime() - since >= maxDelay);
+    }
+
+    /**
+     * writes every held chunk, in offset order, a run of contiguous chunks at
+     * a time
+     */
+    synchronized void flush(FileWriter fw) throws IOException {
+        Iterator<Chunk> it = pending.values().iterator();
+        int n = 0;
+        long end = -1; // offset right after the current run
+        while (it.hasNext()) {
+            Chunk ck = it.next();
+            it.remove();
+            bytes -= ck.getSize_in_bytes();
+            if (n > 0 && (ck.getOffset() != end || n == MAX_RUN)) {
+                fw.writeRun(run, n);
+                n = 0;
+            }
+            run[n++] = ck;
+            end = ck.getOffset() + ck.getSize_in_bytes();
+        }
+        if (n > 0) {
+            fw.writeRun(run, n);
+        }
+        for (int i = 0; i < MAX_RUN && run[i] != null; i++) {
+            run[i] = null;
+        }
+    }
+}